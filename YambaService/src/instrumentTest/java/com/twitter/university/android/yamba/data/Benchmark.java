@@ -0,0 +1,113 @@
+package com.twitter.university.android.yamba.data;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+
+/**
+ * A minimal harness for on-device benchmarks: they run against the
+ * real SQLite, on the real runtime.  Each benchmark is run a few
+ * times to warm up, and then timed over a fixed number of runs.
+ * A run may be many operations: a batch of rows, for instance.
+ *
+ * Every result is logged, and appended to {@link #RESULTS_FILE},
+ * in the app's files directory, as a tab separated line: the time,
+ * the app version, the device, the benchmark, the number of
+ * operations and the nanoseconds per operation.  Compare the lines
+ * from two versions, run on the same device, to spot regressions.
+ */
+public final class Benchmark {
+    /** The results file, in the app's files directory */
+    public static final String RESULTS_FILE = "benchmarks.tsv";
+
+    private static final String TAG = "BENCH";
+
+    /**
+     * A benchmarked operation.
+     */
+    public static interface Op {
+        /**
+         * @param run the index of the run: warm up runs first
+         * @throws Exception on failure: fails the benchmark
+         */
+        void run(int run) throws Exception;
+    }
+
+    private final File results;
+    private final String version;
+
+    /**
+     * @param ctxt the context of the app under test
+     */
+    public Benchmark(Context ctxt) {
+        this.results = new File(ctxt.getFilesDir(), RESULTS_FILE);
+        this.version = getVersion(ctxt) + "\t" + Build.MODEL + "/" + Build.VERSION.SDK_INT;
+    }
+
+    /**
+     * @param name the benchmark
+     * @param warmups the number of untimed runs
+     * @param runs the number of timed runs
+     * @param opsPerRun the number of operations in each run
+     * @param op the operation
+     * @return nanoseconds per operation
+     * @throws Exception if the operation fails
+     */
+    public long run(String name, int warmups, int runs, int opsPerRun, Op op) throws Exception {
+        for (int i = 0; i < warmups; i++) { op.run(i); }
+        Runtime.getRuntime().gc();
+
+        long t = System.nanoTime();
+        for (int i = 0; i < runs; i++) { op.run(warmups + i); }
+        return record(name, (long) runs * opsPerRun, System.nanoTime() - t);
+    }
+
+    /**
+     * Record a result timed by the caller.
+     *
+     * @param name the benchmark
+     * @param ops the number of operations
+     * @param nanos the total time they took
+     * @return nanoseconds per operation
+     */
+    public long record(String name, long ops, long nanos) {
+        long nsPerOp = nanos / Math.max(1, ops);
+        Log.i(TAG, name + ": " + ops + " ops, " + nsPerOp + " ns/op, "
+            + (1000L * 1000 * 1000 / Math.max(1, nsPerOp)) + " ops/s");
+
+        String line = System.currentTimeMillis() + "\t" + version
+            + "\t" + name + "\t" + ops + "\t" + nsPerOp + "\n";
+        Writer out = null;
+        try {
+            out = new FileWriter(results, true);
+            out.write(line);
+        }
+        catch (IOException e) { Log.w(TAG, "failed recording result", e); }
+        finally {
+            if (null != out) {
+                try { out.close(); }
+                catch (IOException e) { Log.w(TAG, "close failed", e); }
+            }
+        }
+
+        return nsPerOp;
+    }
+
+    private static String getVersion(Context ctxt) {
+        try {
+            PackageInfo info = ctxt.getPackageManager().getPackageInfo(ctxt.getPackageName(), 0);
+            return info.versionName + "(" + info.versionCode + ")";
+        }
+        catch (PackageManager.NameNotFoundException e) {
+            return "unknown";
+        }
+    }
+}
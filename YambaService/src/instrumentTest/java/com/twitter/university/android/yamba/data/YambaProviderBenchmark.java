@@ -0,0 +1,291 @@
+package com.twitter.university.android.yamba.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.twitter.university.android.yamba.service.YambaContract;
+
+
+/**
+ * Benchmarks of the provider's hot paths.  See {@link Benchmark}.
+ */
+@LargeTest
+public class YambaProviderBenchmark extends ProviderTestCase2<YambaProvider> {
+    private static final int HANDLES = 50;
+    // fewer than the provider retains, in total and per handle
+    private static final int ROWS = 2000;
+    private static final int[] BATCH_SIZES = new int[] { 1, 10, 100, 1000 };
+    private static final int[] SEARCH_ROWS = new int[] { 1000, 4000 };
+
+    private static final String[] PROJ = new String[] {
+        YambaContract.Timeline.Columns.ID,
+        YambaContract.Timeline.Columns.TIMESTAMP,
+        YambaContract.Timeline.Columns.HANDLE,
+        YambaContract.Timeline.Columns.TWEET
+    };
+
+    private static final String[] PROJ_MAX = new String[] {
+        YambaContract.MaxTimeline.Columns.TIMESTAMP,
+        YambaContract.MaxTimeline.Columns.ID
+    };
+
+    private Benchmark bench;
+    private long t0;
+
+    public YambaProviderBenchmark() {
+        super(YambaProvider.class, YambaContract.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        bench = new Benchmark(getContext());
+        // recent enough that the provider's retention keeps every row
+        t0 = System.currentTimeMillis() - 60 * 60 * 1000;
+    }
+
+    // The provider's own map: with every handle committed, and
+    // cached, its encoder never touches the db.
+    public void testColumnMap() throws Exception {
+        addUsers();
+        final ColumnMap colMap = getProvider().getTimelineColumnMap();
+        final ContentValues[] rows = rows(1, ROWS);
+
+        bench.run("ColumnMap.translateCols", 5, 20, rows.length, new Benchmark.Op() {
+            @Override
+            public void run(int run) {
+                for (ContentValues row: rows) { colMap.translateCols(row); }
+            }
+        });
+
+        YambaDbHelper helper = new YambaDbHelper(getMockContext());
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            final SQLiteStatement stmt = db.compileStatement(
+                BatchInserter.buildInsert(
+                    BatchInserter.Conflict.IGNORE.insert,
+                    YambaDbHelper.TABLE_TIMELINE,
+                    colMap.getActualCols()));
+            try {
+                bench.run("ColumnMap.bindCols", 5, 20, rows.length, new Benchmark.Op() {
+                    @Override
+                    public void run(int run) {
+                        for (ContentValues row: rows) { colMap.bindCols(stmt, row); }
+                    }
+                });
+            }
+            finally {
+                stmt.close();
+            }
+        }
+        finally {
+            helper.close();
+        }
+    }
+
+    // The per-row insert that BatchInserter replaced, and BatchInserter
+    public void testIngest() throws Exception {
+        // the users are not part of the benchmark
+        addUsers();
+        final ColumnMap colMap = getProvider().getTimelineColumnMap();
+        final ContentValues[] rows = rows(1, ROWS);
+
+        YambaDbHelper helper = new YambaDbHelper(getMockContext());
+        try {
+            final SQLiteDatabase db = helper.getWritableDatabase();
+
+            // each run is rolled back: every run inserts every row
+            bench.run("ingest SQLiteDatabase.insert", 2, 10, rows.length, new Benchmark.Op() {
+                @Override
+                public void run(int run) {
+                    db.beginTransaction();
+                    try {
+                        for (ContentValues row: rows) {
+                            assertTrue(0 < db.insert(YambaDbHelper.TABLE_TIMELINE, null, colMap.translateCols(row)));
+                        }
+                    }
+                    finally {
+                        db.endTransaction();
+                    }
+                }
+            });
+
+            bench.run("ingest BatchInserter", 2, 10, rows.length, new Benchmark.Op() {
+                @Override
+                public void run(int run) {
+                    db.beginTransaction();
+                    BatchInserter inserter = new BatchInserter(
+                        db,
+                        YambaDbHelper.TABLE_TIMELINE,
+                        colMap,
+                        YambaDbHelper.COL_ID,
+                        BatchInserter.Conflict.IGNORE);
+                    try {
+                        for (ContentValues row: rows) { inserter.insert(row); }
+                        assertEquals(rows.length, inserter.getInserted());
+                    }
+                    finally {
+                        inserter.close();
+                        db.endTransaction();
+                    }
+                }
+            });
+        }
+        finally {
+            helper.close();
+        }
+    }
+
+    // Building the SQL, uncached, and then the provider's query
+    public void testQueryBuilding() throws Exception {
+        bench.run("YambaProvider.buildTimelinePageQuery", 1000, 10000, 1, new Benchmark.Op() {
+            @Override
+            public void run(int run) {
+                YambaProvider.buildTimelinePageQuery(PROJ, null, "20", QueryShape.WHERE_BEFORE);
+            }
+        });
+
+        // the provider caches the SQL for each query shape
+        insert(rows(1, ROWS), ROWS);
+        bench.run("YambaProvider.query page", 100, 1000, 1, new Benchmark.Op() {
+            @Override
+            public void run(int run) {
+                Cursor c = getMockContentResolver().query(
+                    YambaContract.Timeline.pageUri(t0 + (run % ROWS) * 1000, Long.MAX_VALUE, 20),
+                    PROJ,
+                    null,
+                    null,
+                    null);
+                try { while (c.moveToNext()) { c.getString(3); } }
+                finally { c.close(); }
+            }
+        });
+    }
+
+    public void testBulkInsert() {
+        // untimed: the first insert creates the db
+        addUsers();
+
+        for (int size: BATCH_SIZES) {
+            getMockContentResolver().delete(YambaContract.Timeline.URI, null, null);
+
+            ContentValues[] rows = rows(1, ROWS);
+            ContentValues[][] batches = new ContentValues[ROWS / size][];
+            for (int i = 0; i < batches.length; i++) {
+                batches[i] = new ContentValues[size];
+                System.arraycopy(rows, i * size, batches[i], 0, size);
+            }
+
+            int n = 0;
+            long t = System.nanoTime();
+            for (ContentValues[] batch: batches) {
+                n += getMockContentResolver().bulkInsert(YambaContract.Timeline.URI, batch);
+            }
+            bench.record("YambaProvider.bulkInsert batch=" + size, ROWS, System.nanoTime() - t);
+            assertEquals(ROWS, n);
+        }
+    }
+
+    public void testMaxTimeline() throws Exception {
+        insert(rows(1, ROWS), ROWS);
+
+        bench.run("YambaProvider.query maxTimeline", 100, 1000, 1, new Benchmark.Op() {
+            @Override
+            public void run(int run) {
+                Cursor c = getMockContentResolver().query(YambaContract.MaxTimeline.URI, PROJ_MAX, null, null, null);
+                try {
+                    assertTrue(c.moveToFirst());
+                    assertEquals(ROWS, c.getLong(1));
+                }
+                finally {
+                    c.close();
+                }
+            }
+        });
+    }
+
+    // Search latency against the size of the timeline: a rare word,
+    // a word in every tweet, and the LIKE scan that search replaced.
+    public void testSearch() throws Exception {
+        YambaDbHelper helper = new YambaDbHelper(getMockContext());
+        try {
+            final SQLiteDatabase db = helper.getReadableDatabase();
+            for (int n: SEARCH_ROWS) {
+                getMockContentResolver().delete(YambaContract.Timeline.URI, null, null);
+                insert(rows(1, n), 1000);
+
+                bench.run("search rare rows=" + n, 10, 100, 1, new Benchmark.Op() {
+                    @Override
+                    public void run(int run) { search("topic" + (run % 37)); }
+                });
+                bench.run("search common rows=" + n, 10, 100, 1, new Benchmark.Op() {
+                    @Override
+                    public void run(int run) { search("status"); }
+                });
+                bench.run("search LIKE rows=" + n, 10, 100, 1, new Benchmark.Op() {
+                    @Override
+                    public void run(int run) {
+                        Cursor c = db.rawQuery(
+                            "SELECT " + YambaDbHelper.COL_ID + " FROM " + YambaDbHelper.TABLE_TIMELINE
+                                + " WHERE " + YambaDbHelper.COL_TWEET + " LIKE ?"
+                                + " ORDER BY " + YambaDbHelper.COL_TIMESTAMP + " DESC LIMIT 20",
+                            new String[] { "%topic" + (run % 37) + ",%" });
+                        try { while (c.moveToNext()) { c.getLong(0); } }
+                        finally { c.close(); }
+                    }
+                });
+            }
+        }
+        finally {
+            helper.close();
+        }
+    }
+
+    private void search(String q) {
+        Cursor c = getMockContentResolver().query(YambaContract.Search.searchUri(q, 20), PROJ, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            do { c.getString(3); } while (c.moveToNext());
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    private void insert(ContentValues[] rows, int batchSize) {
+        for (int i = 0; i < rows.length; i += batchSize) {
+            ContentValues[] batch = new ContentValues[Math.min(batchSize, rows.length - i)];
+            System.arraycopy(rows, i, batch, 0, batch.length);
+            getMockContentResolver().bulkInsert(YambaContract.Timeline.URI, batch);
+        }
+    }
+
+    // ids first..first+n-1, one second apart, newest last
+    private ContentValues[] rows(long first, int n) {
+        ContentValues[] rows = new ContentValues[n];
+        for (int i = 0; i < n; i++) {
+            long id = first + i;
+            ContentValues row = new ContentValues();
+            row.put(YambaContract.Timeline.Columns.ID, Long.valueOf(id));
+            row.put(YambaContract.Timeline.Columns.TIMESTAMP, Long.valueOf(t0 + i * 1000));
+            row.put(YambaContract.Timeline.Columns.HANDLE, handle((int) (Math.abs(id) % HANDLES)));
+            row.put(
+                YambaContract.Timeline.Columns.TWEET,
+                "status " + id + ", about topic" + (id % 37) + ", with a typical amount of text in it");
+            rows[i] = row;
+        }
+        return rows;
+    }
+
+    private static String handle(int i) { return "user" + i; }
+
+    // Commits every handle, through the provider: the timeline is left empty
+    private void addUsers() {
+        insert(rows(-ROWS, HANDLES), HANDLES);
+        getMockContentResolver().delete(YambaContract.Timeline.URI, null, null);
+    }
+}
@@ -0,0 +1,412 @@
+package com.twitter.university.android.yamba.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+import com.twitter.university.android.yamba.service.YambaContract;
+import com.twitter.university.android.yamba.service.YambaMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+public class YambaProviderTest extends ProviderTestCase2<YambaProvider> {
+    // recent enough that the provider's retention keeps every row
+    private static final long T0 = System.currentTimeMillis() - 60 * 60 * 1000;
+    private static final long IMPORT_TIMEOUT = 10 * 1000;
+
+    private static final String[] PROJ = new String[] {
+        YambaContract.Timeline.Columns.ID,
+        YambaContract.Timeline.Columns.TIMESTAMP,
+        YambaContract.Timeline.Columns.HANDLE,
+        YambaContract.Timeline.Columns.TWEET
+    };
+
+    private static final String PAGE = "20";
+
+    public YambaProviderTest() {
+        super(YambaProvider.class, YambaContract.AUTHORITY);
+    }
+
+    // The SQL is built as the provider builds it, for the same query shapes
+    public void testTimelineQueryPlans() {
+        insert(null, rows(1, 100, 10));
+
+        assertPlan(
+            YambaProvider.buildTimelinePageQuery(PROJ, null, PAGE, 0),
+            new String[0],
+            YambaDbHelper.IDX_TIMELINE_TIMESTAMP);
+        assertPlan(
+            YambaProvider.buildTimelinePageQuery(PROJ, null, PAGE, QueryShape.WHERE_BEFORE),
+            new String[] { "1", "1", "1" },
+            YambaDbHelper.IDX_TIMELINE_TIMESTAMP);
+        assertPlan(
+            YambaProvider.buildTimelinePageQuery(
+                PROJ,
+                YambaContract.Timeline.Columns.HANDLE + "=?",
+                PAGE,
+                0),
+            new String[] { "user1" },
+            YambaDbHelper.IDX_TIMELINE_USER);
+    }
+
+    public void testSearchQueryPlan() {
+        insert(null, rows(1, 100, 10));
+
+        List<String> plan = explain(YambaProvider.buildSearchQuery(null, PAGE), new String[] { "tweet*" });
+        assertFalse(plan.toString(), isFullScan(plan, YambaDbHelper.TABLE_TIMELINE));
+        assertFalse(plan.toString(), isFullScan(plan, YambaDbHelper.TABLE_USERS));
+        assertTrue(plan.toString(), mentions(plan, YambaDbHelper.TABLE_TIMELINE_SEARCH));
+    }
+
+    public void testSearch() {
+        insert(null, rows(1, 10, 2));
+        ContentValues row = row(100, T0 + 100, "searcher", "needle needle haystack");
+        insert(null, new ContentValues[] { row });
+        insert(null, new ContentValues[] { row(101, T0 + 101, "searcher", "needle haystack") });
+
+        Cursor c = getMockContentResolver()
+            .query(YambaContract.Search.searchUri("needle", 10), PROJ, null, null, null);
+        try {
+            // more matches first
+            assertEquals(2, c.getCount());
+            assertTrue(c.moveToNext());
+            assertEquals(100, c.getLong(0));
+            assertTrue(c.moveToNext());
+            assertEquals(101, c.getLong(0));
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    public void testConflictIgnore() {
+        assertEquals(1, insert(null, new ContentValues[] { row(1, T0, "ann", "first") }));
+        assertEquals(0, insert(YambaContract.Timeline.CONFLICT_IGNORE, new ContentValues[] { row(1, T0, "ann", "second") }));
+        assertRow(1, T0, "ann", "first");
+    }
+
+    public void testConflictReplace() {
+        insert(null, new ContentValues[] { row(1, T0, "ann", "first") });
+        assertEquals(
+            1,
+            insert(YambaContract.Timeline.CONFLICT_REPLACE, new ContentValues[] { row(1, T0 + 1, "bob", "second") }));
+        assertRow(1, T0 + 1, "bob", "second");
+    }
+
+    public void testConflictUpdate() {
+        insert(null, new ContentValues[] { row(1, T0, "ann", "first") });
+
+        // unchanged: not counted
+        assertEquals(
+            0,
+            insert(YambaContract.Timeline.CONFLICT_UPDATE, new ContentValues[] { row(1, T0, "ann", "first") }));
+
+        // a partial row changes only its own columns
+        ContentValues partial = new ContentValues();
+        partial.put(YambaContract.Timeline.Columns.ID, Long.valueOf(1));
+        partial.put(YambaContract.Timeline.Columns.TWEET, "edited");
+        assertEquals(1, insert(YambaContract.Timeline.CONFLICT_UPDATE, new ContentValues[] { partial }));
+        assertRow(1, T0, "ann", "edited");
+    }
+
+    public void testUserIdIsNotWritable() {
+        ContentValues row = row(1, T0, "ann", "first");
+        row.put("_user_id", Long.valueOf(7));
+        try {
+            insert(null, new ContentValues[] { row });
+            fail("wrote the user id");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testUpdateAndDeleteByContractColumns() {
+        insert(null, rows(1, 20, 2));
+        ContentResolver resolver = getMockContentResolver();
+
+        ContentValues vals = new ContentValues();
+        vals.put(YambaContract.Timeline.Columns.TWEET, "edited");
+        int n = resolver.update(
+            YambaContract.Timeline.URI,
+            vals,
+            YambaContract.Timeline.Columns.HANDLE + "=?",
+            new String[] { "user0" });
+        assertEquals(10, n);
+
+        n = resolver.delete(
+            YambaContract.Timeline.URI,
+            YambaContract.Timeline.Columns.TIMESTAMP + "<?",
+            new String[] { String.valueOf(T0 + 5) });
+        assertEquals(5, n);
+        assertEquals(15, count());
+    }
+
+    public void testKeysetPaging() {
+        // runs of equal timestamps: the id breaks the ties
+        int rows = 95;
+        ContentValues[] vals = new ContentValues[rows];
+        for (int i = 0; i < rows; i++) {
+            vals[i] = row(i + 1, T0 + (i / 3), "user" + (i % 4), "tweet " + i);
+        }
+        insert(null, vals);
+
+        Set<Long> seen = new HashSet<Long>();
+        long lastTs = Long.MAX_VALUE;
+        long lastId = Long.MAX_VALUE;
+        Uri uri = YambaContract.Timeline.pageUri(10);
+        while (true) {
+            Cursor c = getMockContentResolver().query(uri, PROJ, null, null, null);
+            int n = 0;
+            try {
+                while (c.moveToNext()) {
+                    long id = c.getLong(0);
+                    long ts = c.getLong(1);
+                    assertTrue("out of order: " + id, (ts < lastTs) || ((ts == lastTs) && (id < lastId)));
+                    assertTrue("repeated: " + id, seen.add(Long.valueOf(id)));
+                    lastTs = ts;
+                    lastId = id;
+                    n++;
+                }
+            }
+            finally {
+                c.close();
+            }
+            if (0 >= n) { break; }
+            uri = YambaContract.Timeline.pageUri(lastTs, lastId, 10);
+        }
+
+        assertEquals(rows, seen.size());
+    }
+
+    public void testSnapshotRoundTrip() throws Exception {
+        ContentValues[] vals = rows(1, 2500, 7);
+        vals[0].putNull(YambaContract.Timeline.Columns.TWEET);
+        vals[1].put(YambaContract.Timeline.Columns.TWEET, "non-ascii: \u00e9\u4e2d\ud83d\ude00");
+        insert(null, vals);
+
+        exportAndImport(vals.length);
+
+        assertRow(1, T0, "user1", null);
+        assertRow(2, T0 + 1, "user2", "non-ascii: \u00e9\u4e2d\ud83d\ude00");
+        assertRow(2500, T0 + 2499, "user" + (2500 % 7), "tweet 2500");
+    }
+
+    public void testSnapshotRoundTripLongStrings() throws Exception {
+        // nothing limits a tweet or a handle, on insert
+        StringBuilder tweet = new StringBuilder();
+        while (tweet.length() < 20000) { tweet.append("long \u4e2d\ud83d\ude00 tweet "); }
+        StringBuilder handle = new StringBuilder();
+        while (handle.length() < 5000) { handle.append("handle"); }
+
+        ContentValues[] vals = rows(1, 10, 3);
+        vals[4] = row(5, T0 + 4, handle.toString(), tweet.toString());
+        insert(null, vals);
+
+        exportAndImport(vals.length);
+
+        assertRow(5, T0 + 4, handle.toString(), tweet.toString());
+        assertRow(10, T0 + 9, "user" + (10 % 3), "tweet 10");
+    }
+
+    // The valid row is in the failed chunk: it is not imported
+    public void testMalformedSnapshotIsRejected() throws Exception {
+        insert(null, rows(1, 1, 1));
+        byte[] snapshot = malformed(export());
+        getMockContentResolver().delete(YambaContract.Timeline.URI, null, null);
+
+        long failures = YambaMetrics.Counter.SNAPSHOT_IMPORT_FAILURES.get();
+        importSnapshot(snapshot);
+
+        assertEquals(failures + 1, YambaMetrics.Counter.SNAPSHOT_IMPORT_FAILURES.get());
+        assertEquals(0, count());
+    }
+
+    // Only the chunk in which the import fails is lost
+    public void testMalformedSnapshotKeepsCommittedChunks() throws Exception {
+        int rows = YambaProvider.IMPORT_TRANSACTION_ROWS;
+        insert(null, rows(1, rows + 1, 10));
+        byte[] snapshot = malformed(export());
+        getMockContentResolver().delete(YambaContract.Timeline.URI, null, null);
+
+        long failures = YambaMetrics.Counter.SNAPSHOT_IMPORT_FAILURES.get();
+        importSnapshot(snapshot);
+
+        assertEquals(failures + 1, YambaMetrics.Counter.SNAPSHOT_IMPORT_FAILURES.get());
+        assertEquals(rows, count());
+        assertRow(rows, T0 + rows - 1, "user" + (rows % 10), "tweet " + rows);
+    }
+
+    // Export the timeline, empty it, and import the export
+    private void exportAndImport(int rows) throws Exception {
+        byte[] snapshot = export();
+
+        getMockContentResolver().delete(YambaContract.Timeline.URI, null, null);
+        assertEquals(0, count());
+
+        long failures = YambaMetrics.Counter.SNAPSHOT_IMPORT_FAILURES.get();
+        importSnapshot(snapshot);
+
+        assertEquals(failures, YambaMetrics.Counter.SNAPSHOT_IMPORT_FAILURES.get());
+        assertEquals(rows, count());
+    }
+
+    private byte[] export() throws IOException {
+        return readAll(getMockContentResolver().openInputStream(YambaContract.Snapshot.URI));
+    }
+
+    // Write a snapshot, and wait for the import, which runs in the background
+    private void importSnapshot(byte[] snapshot) throws Exception {
+        long imports = YambaMetrics.Timer.SNAPSHOT_IMPORT.getCount();
+
+        OutputStream out = getMockContentResolver().openOutputStream(YambaContract.Snapshot.URI);
+        try { out.write(snapshot); }
+        finally {
+            try { out.close(); }
+            catch (IOException e) {
+                // a failed import may already have closed the pipe
+            }
+        }
+
+        long end = System.currentTimeMillis() + IMPORT_TIMEOUT;
+        while ((YambaMetrics.Timer.SNAPSHOT_IMPORT.getCount() <= imports)
+            && (System.currentTimeMillis() < end))
+        {
+            Thread.sleep(50);
+        }
+        assertTrue("import did not finish", YambaMetrics.Timer.SNAPSHOT_IMPORT.getCount() > imports);
+    }
+
+    // Replaces the snapshot's end with a row whose handle
+    // claims to be 2GB long
+    private static byte[] malformed(byte[] snapshot) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(snapshot, 0, snapshot.length - 1);
+        out.write(1);
+        out.write(new byte[16], 0, 16);
+        out.write(new byte[] { 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff }, 0, 4);
+        return out.toByteArray();
+    }
+
+    private void assertPlan(String sql, String[] args, String index) {
+        List<String> plan = explain(sql, args);
+        assertTrue(plan.toString(), mentions(plan, index));
+        assertFalse(plan.toString(), mentions(plan, "TEMP B-TREE"));
+        assertFalse(plan.toString(), isFullScan(plan, YambaDbHelper.TABLE_TIMELINE));
+    }
+
+    private List<String> explain(String sql, String[] args) {
+        List<String> plan = new ArrayList<String>();
+        YambaDbHelper helper = new YambaDbHelper(getMockContext());
+        try {
+            SQLiteDatabase db = helper.getReadableDatabase();
+            Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+            try {
+                int detail = c.getColumnIndexOrThrow("detail");
+                while (c.moveToNext()) { plan.add(c.getString(detail)); }
+            }
+            finally {
+                c.close();
+            }
+        }
+        finally {
+            helper.close();
+        }
+        return plan;
+    }
+
+    private static boolean mentions(List<String> plan, String s) {
+        for (String step: plan) {
+            if (0 <= step.indexOf(s)) { return true; }
+        }
+        return false;
+    }
+
+    // "SCAN TABLE t" or, in newer releases, "SCAN t": without an index
+    private static boolean isFullScan(List<String> plan, String table) {
+        for (String step: plan) {
+            if (step.startsWith("SCAN")
+                && ((0 <= step.indexOf(" " + table + " ")) || step.endsWith(" " + table))
+                && (0 > step.indexOf("INDEX")))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int insert(String conflict, ContentValues[] vals) {
+        Uri uri = YambaContract.Timeline.URI;
+        if (null != conflict) {
+            uri = uri.buildUpon().appendQueryParameter(YambaContract.Timeline.PARAM_CONFLICT, conflict).build();
+        }
+        return getMockContentResolver().bulkInsert(uri, vals);
+    }
+
+    private int count() {
+        Cursor c = getMockContentResolver().query(YambaContract.Timeline.URI, PROJ, null, null, null);
+        try { return c.getCount(); }
+        finally { c.close(); }
+    }
+
+    private void assertRow(long id, long ts, String handle, String tweet) {
+        Cursor c = getMockContentResolver().query(
+            YambaContract.Timeline.URI.buildUpon().appendPath(String.valueOf(id)).build(),
+            PROJ,
+            null,
+            null,
+            null);
+        try {
+            assertTrue("no row: " + id, c.moveToNext());
+            assertEquals(ts, c.getLong(1));
+            assertEquals(handle, c.getString(2));
+            assertEquals(tweet, c.getString(3));
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    // ids first..first+n-1, one second apart, from the given number of handles
+    private static ContentValues[] rows(long first, int n, int handles) {
+        ContentValues[] vals = new ContentValues[n];
+        for (int i = 0; i < n; i++) {
+            long id = first + i;
+            vals[i] = row(id, T0 + i, "user" + (id % handles), "tweet " + id);
+        }
+        return vals;
+    }
+
+    private static ContentValues row(long id, long ts, String handle, String tweet) {
+        ContentValues row = new ContentValues();
+        row.put(YambaContract.Timeline.Columns.ID, Long.valueOf(id));
+        row.put(YambaContract.Timeline.Columns.TIMESTAMP, Long.valueOf(ts));
+        row.put(YambaContract.Timeline.Columns.HANDLE, handle);
+        row.put(YambaContract.Timeline.Columns.TWEET, tweet);
+        return row;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        try {
+            int n;
+            while (0 <= (n = in.read(buf))) { bytes.write(buf, 0, n); }
+        }
+        finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,281 @@
+package com.twitter.university.android.yamba.service;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * A local stand-in for the Yamba API, for tests.  It serves a single
+ * canned timeline, over HTTP/1.1 with keep-alive, honours conditional
+ * and gzip requests, and counts the connections it accepts, the
+ * requests (round trips) it serves, and the bytes it sends.
+ */
+class StandInServer {
+    private static final String TAG = "STANDIN";
+
+    private static final String ISO_8859_1 = "ISO-8859-1";
+    private static final String UTF_8 = "UTF-8";
+    private static final String CRLF = "\r\n";
+
+    // Immutable: replaced, as a whole, by setTimeline.
+    private static final class Timeline {
+        final byte[] body;
+        final byte[] gzipBody;
+        final String etag;
+        final String lastModified;
+
+        Timeline(byte[] body, String etag, String lastModified) throws IOException {
+            this.body = body;
+            this.gzipBody = gzip(body);
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final List<String> requestLines = new ArrayList<String>();
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private final ServerSocket server;
+
+    private volatile Timeline timeline;
+    private volatile Map<String, String> lastHeaders;
+
+    /**
+     * A timeline of statuses 1 to n, each a second newer than the
+     * one before, newest first, as the service returns it.
+     *
+     * @param n the number of statuses
+     * @param newest the time of status n, in whole seconds
+     * @return the timeline document
+     */
+    public static String buildTimeline(int n, long newest) {
+        SimpleDateFormat fmt = new SimpleDateFormat("EEE MMM dd HH:mm:ss Z yyyy", Locale.US);
+        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+            .append("<statuses type=\"array\">");
+        for (int i = n; 0 < i; i--) {
+            xml.append("<status>")
+                .append("<created_at>").append(fmt.format(new Date(getTimestamp(i, n, newest)))).append("</created_at>")
+                .append("<id>").append(i).append("</id>")
+                .append("<text>status number ").append(i).append(", with a typical amount of text in it</text>")
+                .append("<user><id>").append(i % 50).append("</id><name>user").append(i % 50).append("</name></user>")
+                .append("</status>");
+        }
+        return xml.append("</statuses>").toString();
+    }
+
+    /**
+     * @param id a status in a timeline from {@link #buildTimeline(int, long)}
+     * @param n the number of statuses
+     * @param newest the time of status n
+     * @return the time of the status
+     */
+    public static long getTimestamp(long id, int n, long newest) { return newest - (n - id) * 1000; }
+
+    /**
+     * Starts serving, on an ephemeral port of the loopback interface.
+     *
+     * @throws IOException on failure to bind
+     */
+    public StandInServer() throws IOException {
+        server = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        setTimeline("<?xml version=\"1.0\" encoding=\"UTF-8\"?><statuses type=\"array\"></statuses>", null, null);
+
+        Thread acceptor = new Thread("standin-accept") {
+            @Override
+            public void run() { accept(); }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return the API root, for a TimelineTransport
+     */
+    public String getApiRoot() { return "http://127.0.0.1:" + server.getLocalPort() + "/api"; }
+
+    /**
+     * @param xml the friends timeline document
+     * @param etag its ETag: null for none
+     * @param lastModified its Last-Modified date: null for none
+     * @throws IOException on failure to compress the document
+     */
+    public void setTimeline(String xml, String etag, String lastModified) throws IOException {
+        timeline = new Timeline(xml.getBytes(UTF_8), etag, lastModified);
+    }
+
+    /**
+     * @return the number of connections accepted
+     */
+    public int getConnections() { return connections.get(); }
+
+    /**
+     * @return the number of requests served
+     */
+    public int getRequests() { return requests.get(); }
+
+    /**
+     * @return the number of bytes sent, headers included
+     */
+    public long getBytesSent() { return bytesSent.get(); }
+
+    /**
+     * @return the request line of the most recent request: null if none
+     */
+    public String getLastRequestLine() {
+        synchronized (requestLines) {
+            return (requestLines.isEmpty()) ? null : requestLines.get(requestLines.size() - 1);
+        }
+    }
+
+    /**
+     * @param name a header name, in lower case
+     * @return the header's value, in the most recent request: null if none
+     */
+    public String getLastRequestHeader(String name) {
+        Map<String, String> headers = lastHeaders;
+        return (null == headers) ? null : headers.get(name);
+    }
+
+    /**
+     * Stop serving, and close every connection.
+     */
+    public void shutdown() {
+        closeQuietly(server);
+        synchronized (sockets) {
+            for (Socket s: sockets) { closeQuietly(s); }
+            sockets.clear();
+        }
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            final Socket s;
+            try { s = server.accept(); }
+            catch (IOException e) { return; }
+
+            connections.incrementAndGet();
+            synchronized (sockets) { sockets.add(s); }
+            Thread conn = new Thread("standin-conn") {
+                @Override
+                public void run() { serve(s); }
+            };
+            conn.setDaemon(true);
+            conn.start();
+        }
+    }
+
+    // One request after another, until the client closes the connection
+    private void serve(Socket s) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), ISO_8859_1));
+            OutputStream out = s.getOutputStream();
+            while (true) {
+                String requestLine = in.readLine();
+                if (null == requestLine) { return; }
+                if (0 >= requestLine.length()) { continue; }
+
+                Map<String, String> headers = new HashMap<String, String>();
+                String line;
+                while ((null != (line = in.readLine())) && (0 < line.length())) {
+                    int sep = line.indexOf(':');
+                    if (0 < sep) {
+                        headers.put(
+                            line.substring(0, sep).trim().toLowerCase(Locale.US),
+                            line.substring(sep + 1).trim());
+                    }
+                }
+
+                synchronized (requestLines) { requestLines.add(requestLine); }
+                lastHeaders = headers;
+                requests.incrementAndGet();
+
+                respond(headers, out);
+                if ("close".equalsIgnoreCase(headers.get("connection"))) { return; }
+            }
+        }
+        catch (IOException e) { Log.d(TAG, "connection closed: " + e); }
+        finally {
+            closeQuietly(s);
+        }
+    }
+
+    private void respond(Map<String, String> headers, OutputStream out) throws IOException {
+        Timeline t = timeline;
+
+        StringBuilder head = new StringBuilder();
+        byte[] body = null;
+        if (isNotModified(t, headers)) {
+            head.append("HTTP/1.1 304 Not Modified").append(CRLF);
+        }
+        else {
+            String encoding = headers.get("accept-encoding");
+            boolean gzip = (null != encoding) && (0 <= encoding.toLowerCase(Locale.US).indexOf("gzip"));
+            body = (gzip) ? t.gzipBody : t.body;
+            head.append("HTTP/1.1 200 OK").append(CRLF);
+            head.append("Content-Type: text/xml; charset=utf-8").append(CRLF);
+            if (gzip) { head.append("Content-Encoding: gzip").append(CRLF); }
+        }
+        if (null != t.etag) { head.append("ETag: ").append(t.etag).append(CRLF); }
+        if (null != t.lastModified) { head.append("Last-Modified: ").append(t.lastModified).append(CRLF); }
+        head.append("Content-Length: ").append((null == body) ? 0 : body.length).append(CRLF);
+        head.append(CRLF);
+
+        byte[] headBytes = head.toString().getBytes(ISO_8859_1);
+        out.write(headBytes);
+        long n = headBytes.length;
+        if (null != body) {
+            out.write(body);
+            n += body.length;
+        }
+        out.flush();
+        bytesSent.addAndGet(n);
+    }
+
+    private static boolean isNotModified(Timeline t, Map<String, String> headers) {
+        String etag = headers.get("if-none-match");
+        if (null != etag) { return etag.equals(t.etag); }
+        String modified = headers.get("if-modified-since");
+        return (null != modified) && modified.equals(t.lastModified);
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        try { out.write(data); }
+        finally { out.close(); }
+        return bytes.toByteArray();
+    }
+
+    private static void closeQuietly(ServerSocket s) {
+        try { s.close(); }
+        catch (IOException e) { Log.w(TAG, "close failed", e); }
+    }
+
+    private static void closeQuietly(Socket s) {
+        try { s.close(); }
+        catch (IOException e) { Log.w(TAG, "close failed", e); }
+    }
+}
@@ -0,0 +1,63 @@
+package com.twitter.university.android.yamba.service;
+
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.twitter.university.android.yamba.data.Benchmark;
+import com.twitter.university.android.yamba.data.YambaProvider;
+
+
+/**
+ * End to end benchmark of a poll: fetch from a local stand-in for
+ * the API, parse, and insert through the provider.  See {@link Benchmark}.
+ */
+@LargeTest
+public class TimelineSyncBenchmark extends ProviderTestCase2<YambaProvider> {
+    private static final int[] STATUSES = new int[] { 20, 200 };
+    private static final int WARMUPS = 3;
+    private static final int RUNS = 20;
+
+    private Benchmark bench;
+    private StandInServer server;
+    private TimelineTransport transport;
+
+    public TimelineSyncBenchmark() {
+        super(YambaProvider.class, YambaContract.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        bench = new Benchmark(getContext());
+        server = new StandInServer();
+        transport = new TimelineTransport("student", "password", server.getApiRoot());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.shutdown();
+        super.tearDown();
+    }
+
+    public void testSync() throws Exception {
+        for (int n: STATUSES) {
+            // recent enough that the provider's retention keeps every status
+            server.setTimeline(StandInServer.buildTimeline(n, System.currentTimeMillis()), null, null);
+
+            long nanos = 0;
+            for (int i = 0; i < WARMUPS + RUNS; i++) {
+                // untimed: every run inserts every status
+                getMockContentResolver().delete(YambaContract.Timeline.URI, null, null);
+
+                long t = System.nanoTime();
+                TimelineSync sync = new TimelineSync(getMockContentResolver(), Long.MIN_VALUE, Long.MIN_VALUE, n);
+                transport.fetchFriendsTimeline(sync.getMarkId(), sync.getLimit(), sync);
+                sync.flush();
+                if (WARMUPS <= i) { nanos += System.nanoTime() - t; }
+
+                assertEquals(n, sync.getInserted());
+            }
+            bench.record("TimelineSync statuses=" + n, (long) RUNS * n, nanos);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.twitter.university.android.yamba.service;
+
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+
+import com.marakana.android.yamba.clientlib.YambaClient;
+import com.twitter.university.android.yamba.data.YambaProvider;
+
+import java.util.Date;
+
+
+public class TimelineSyncTest extends ProviderTestCase2<YambaProvider> {
+    private static final int STATUSES = 50;
+    private static final int PAGE = 20;
+    // the newest status already stored
+    private static final int MARK_ID = 5;
+
+    // Ignores every status
+    private static final class Statuses implements YambaClient.TimelineProcessor {
+        @Override public boolean isRunnable() { return true; }
+        @Override public void onStartProcessingTimeline() { }
+        @Override public void onEndProcessingTimeline() { }
+        @Override public void onTimelineStatus(long id, Date createdAt, String user, String msg) { }
+    }
+
+    private StandInServer server;
+    private TimelineTransport transport;
+    private long newest;
+
+    public TimelineSyncTest() {
+        super(YambaProvider.class, YambaContract.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // whole seconds, recent enough that the provider's retention keeps every status
+        newest = (System.currentTimeMillis() / 1000) * 1000;
+        server = new StandInServer();
+        server.setTimeline(StandInServer.buildTimeline(STATUSES, newest), "\"v1\"", null);
+        transport = new TimelineTransport("student", "password", server.getApiRoot());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.shutdown();
+        super.tearDown();
+    }
+
+    public void testFirstSyncTakesNewestPage() throws Exception {
+        TimelineSync sync = new TimelineSync(getMockContentResolver(), Long.MIN_VALUE, Long.MIN_VALUE, PAGE);
+        YambaService.syncTimeline(transport, sync);
+
+        assertFalse(sync.hasGap());
+        assertEquals(PAGE, sync.getInserted());
+        assertEquals(1, server.getRequests());
+        assertEquals(PAGE, count());
+    }
+
+    public void testSyncFillsGap() throws Exception {
+        // validators from an earlier poll, of an older timeline
+        server.setTimeline(StandInServer.buildTimeline(MARK_ID, newest), "\"v0\"", null);
+        transport.commit(transport.fetchFriendsTimeline(Long.MIN_VALUE, PAGE, new Statuses()));
+        server.setTimeline(StandInServer.buildTimeline(STATUSES, newest), "\"v1\"", null);
+
+        TimelineSync sync = new TimelineSync(
+            getMockContentResolver(),
+            StandInServer.getTimestamp(MARK_ID, STATUSES, newest),
+            MARK_ID,
+            PAGE);
+        YambaService.syncTimeline(transport, sync);
+
+        // 50..31, 30..11, 10..6: the stand-in ignores since_id and
+        // max_id, so the sync skips what it already has
+        assertFalse(sync.hasGap());
+        assertEquals(STATUSES - MARK_ID, sync.getInserted());
+        assertEquals(4, server.getRequests());
+        assertEquals(STATUSES - MARK_ID, count());
+
+        String request = server.getLastRequestLine();
+        assertTrue(request, 0 <= request.indexOf("since_id=" + MARK_ID));
+        assertTrue(request, 0 <= request.indexOf("max_id=10"));
+        // an older page is never conditional
+        assertNull(server.getLastRequestHeader("if-none-match"));
+    }
+
+    private int count() {
+        Cursor c = getMockContentResolver().query(
+            YambaContract.Timeline.URI,
+            new String[] { YambaContract.Timeline.Columns.ID },
+            null,
+            null,
+            null);
+        try { return c.getCount(); }
+        finally { c.close(); }
+    }
+}
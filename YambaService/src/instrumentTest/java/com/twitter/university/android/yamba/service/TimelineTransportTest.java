@@ -0,0 +1,169 @@
+package com.twitter.university.android.yamba.service;
+
+import android.test.AndroidTestCase;
+
+import com.marakana.android.yamba.clientlib.YambaClient;
+import com.marakana.android.yamba.clientlib.YambaClientException;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+
+public class TimelineTransportTest extends AndroidTestCase {
+    private static final int STATUSES = 50;
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Fri, 17 Oct 2014 12:00:00 GMT";
+
+    // Records every status it is given
+    private static final class Statuses implements YambaClient.TimelineProcessor {
+        final List<Long> ids = new ArrayList<Long>();
+        final List<String> users = new ArrayList<String>();
+        boolean started;
+        boolean ended;
+
+        @Override public boolean isRunnable() { return true; }
+        @Override public void onStartProcessingTimeline() { started = true; }
+        @Override public void onEndProcessingTimeline() { ended = true; }
+
+        @Override
+        public void onTimelineStatus(long id, Date createdAt, String user, String msg) {
+            ids.add(Long.valueOf(id));
+            users.add(user);
+        }
+    }
+
+    private StandInServer server;
+    private TimelineTransport transport;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new StandInServer();
+        server.setTimeline(buildTimeline(STATUSES), ETAG, LAST_MODIFIED);
+        transport = new TimelineTransport("student", "password", server.getApiRoot());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.shutdown();
+        super.tearDown();
+    }
+
+    public void testFetchParsesTimeline() throws Exception {
+        Statuses statuses = new Statuses();
+        assertNotNull(transport.fetchFriendsTimeline(Long.MIN_VALUE, STATUSES, statuses));
+
+        assertTrue(statuses.started);
+        assertTrue(statuses.ended);
+        assertEquals(STATUSES, statuses.ids.size());
+        assertEquals(Long.valueOf(STATUSES), statuses.ids.get(0));
+        assertEquals("user" + STATUSES, statuses.users.get(0));
+    }
+
+    public void testRequestParameters() throws Exception {
+        transport.fetchFriendsTimeline(Long.MIN_VALUE, 20, new Statuses());
+        String request = server.getLastRequestLine();
+        assertTrue(request, 0 <= request.indexOf("count=20"));
+        assertTrue(request, 0 > request.indexOf("since_id"));
+
+        transport.fetchFriendsTimeline(5, 20, new Statuses());
+        request = server.getLastRequestLine();
+        assertTrue(request, 0 <= request.indexOf("count=20"));
+        assertTrue(request, 0 <= request.indexOf("since_id=5"));
+    }
+
+    public void testConditionalOnlyAfterCommit() throws Exception {
+        TimelineTransport.Validators tags = transport.fetchFriendsTimeline(Long.MIN_VALUE, STATUSES, new Statuses());
+        assertNotNull(tags);
+
+        // not committed: the timeline may not have been stored
+        Statuses statuses = new Statuses();
+        assertNotNull(transport.fetchFriendsTimeline(Long.MIN_VALUE, STATUSES, statuses));
+        assertNull(server.getLastRequestHeader("if-none-match"));
+        assertEquals(STATUSES, statuses.ids.size());
+
+        transport.commit(tags);
+        long sent = server.getBytesSent();
+        statuses = new Statuses();
+        assertNull(transport.fetchFriendsTimeline(Long.MIN_VALUE, STATUSES, statuses));
+        assertEquals(ETAG, server.getLastRequestHeader("if-none-match"));
+        assertFalse(statuses.started);
+        assertEquals(0, statuses.ids.size());
+
+        assertEquals(3, server.getRequests());
+        // a 304 is just its headers
+        assertTrue(server.getBytesSent() - sent < 512);
+
+        // and releases its connection, for the next request
+        assertNull(transport.fetchFriendsTimeline(Long.MIN_VALUE, STATUSES, new Statuses()));
+        assertEquals(4, server.getRequests());
+        assertEquals(1, server.getConnections());
+    }
+
+    public void testConnectionReuseAndCompression() throws Exception {
+        int n = 5;
+        for (int i = 0; i < n; i++) {
+            assertNotNull(transport.fetchFriendsTimeline(Long.MIN_VALUE, STATUSES, new Statuses()));
+        }
+
+        assertEquals(n, server.getRequests());
+        assertEquals(1, server.getConnections());
+        assertEquals("gzip", server.getLastRequestHeader("accept-encoding"));
+        assertTrue(
+            "sent: " + server.getBytesSent(),
+            server.getBytesSent() < n * buildTimeline(STATUSES).getBytes("UTF-8").length / 2);
+    }
+
+    public void testIncompleteStatusesAreSkipped() throws Exception {
+        server.setTimeline(
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?><statuses type=\"array\">"
+                + "<status><created_at>Fri Oct 17 12:13:00 +0000 2014</created_at><id>3</id>"
+                + "<text>complete</text><user><id>3</id><name>user3</name></user></status>"
+                + "<status><id>2</id>"
+                + "<text>no time</text><user><id>2</id><name>user2</name></user></status>"
+                + "<status><created_at>Fri Oct 17 12:11:00 +0000 2014</created_at>"
+                + "<text>no id</text><user><id>1</id><name>user1</name></user></status>"
+                + "</statuses>",
+            null,
+            null);
+
+        Statuses statuses = new Statuses();
+        assertNotNull(transport.fetchFriendsTimeline(Long.MIN_VALUE, STATUSES, statuses));
+        assertEquals(1, statuses.ids.size());
+        assertEquals(Long.valueOf(3), statuses.ids.get(0));
+    }
+
+    public void testMalformedIdFails() throws Exception {
+        server.setTimeline(
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?><statuses type=\"array\">"
+                + "<status><created_at>Fri Oct 17 12:13:00 +0000 2014</created_at><id>three</id>"
+                + "<text>bad id</text><user><id>3</id><name>user3</name></user></status>"
+                + "</statuses>",
+            null,
+            null);
+
+        try {
+            transport.fetchFriendsTimeline(Long.MIN_VALUE, STATUSES, new Statuses());
+            fail("parsed a malformed id");
+        }
+        catch (YambaClientException e) {
+            // expected
+        }
+    }
+
+    // Newest first, as the service returns it
+    private static String buildTimeline(int n) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+            .append("<statuses type=\"array\">");
+        for (int i = n; 0 < i; i--) {
+            xml.append("<status>")
+                .append("<created_at>Fri Oct 17 12:").append(10 + (i % 50)).append(":00 +0000 2014</created_at>")
+                .append("<id>").append(i).append("</id>")
+                .append("<text>status number ").append(i).append(", with some text to compress</text>")
+                .append("<user><id>").append(i).append("</id><name>user").append(i).append("</name></user>")
+                .append("</status>");
+        }
+        return xml.append("</statuses>").toString();
+    }
+}
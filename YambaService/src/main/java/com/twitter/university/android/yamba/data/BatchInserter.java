@@ -0,0 +1,151 @@
+package com.twitter.university.android.yamba.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+
+/**
+ * A single INSERT statement, compiled once for a table and column map,
+ * and reused for every row in a batch.  Must be used, and closed,
+ * within the transaction that created it.
+ *
+ * Rows whose key is already in the table are handled according
+ * to the inserter's {@link Conflict} policy.
+ */
+class BatchInserter {
+    /** Policy for rows whose key already exists */
+    public static enum Conflict {
+        /** keep the existing row */
+        IGNORE("INSERT OR IGNORE"),
+        /** replace the existing row: counted as an insert */
+        REPLACE("INSERT OR REPLACE"),
+        /** update the existing row's non-null columns, iff one has changed */
+        UPDATE("INSERT OR IGNORE");
+
+        final String insert;
+
+        private Conflict(String insert) { this.insert = insert; }
+    }
+
+    private final ColumnMap colMap;
+    private final SQLiteStatement insertStmt;
+    private final SQLiteStatement updateStmt;
+    private final int keyIdx;
+
+    private int inserted;
+    private int updated;
+
+    /**
+     * @param db the database
+     * @param table the target table
+     * @param colMap virtual to actual column map
+     * @param keyCol the actual name of the table's primary key
+     * @param conflict policy for existing keys
+     */
+    public BatchInserter(
+        SQLiteDatabase db,
+        String table,
+        ColumnMap colMap,
+        String keyCol,
+        Conflict conflict)
+    {
+        this.colMap = colMap;
+
+        String[] cols = colMap.getActualCols();
+        keyIdx = indexOf(keyCol, cols);
+
+        insertStmt = db.compileStatement(buildInsert(conflict.insert, table, cols));
+        updateStmt = (Conflict.UPDATE != conflict)
+            ? null
+            : db.compileStatement(buildUpdate(table, cols, keyIdx));
+    }
+
+    /**
+     * @param row virtual content values
+     * @return the id of the inserted or updated row, or -1 if the row was unchanged
+     */
+    public long insert(ContentValues row) {
+        colMap.bindCols(insertStmt, row);
+        long id;
+        try { id = insertStmt.executeInsert(); }
+        catch (SQLiteConstraintException e) { return -1; }
+
+        if (0 < id) {
+            inserted++;
+            return id;
+        }
+
+        if (null == updateStmt) { return -1; }
+
+        colMap.bindCols(updateStmt, row);
+        try { if (0 >= updateStmt.executeUpdateDelete()) { return -1; } }
+        catch (SQLiteConstraintException e) { return -1; }
+        updated++;
+        return ColumnMap.Type.asLong(row.get(colMap.getVirtualCol(keyIdx)));
+    }
+
+    /**
+     * @return the number of rows inserted (or replaced)
+     */
+    public int getInserted() { return inserted; }
+
+    /**
+     * @return the number of existing rows updated
+     */
+    public int getUpdated() { return updated; }
+
+    /**
+     * Release the compiled statements
+     */
+    public void close() {
+        insertStmt.close();
+        if (null != updateStmt) { updateStmt.close(); }
+    }
+
+    private static int indexOf(String col, String[] cols) {
+        for (int i = 0; i < cols.length; i++) {
+            if (cols[i].equals(col)) { return i; }
+        }
+        throw new IllegalArgumentException("No such column: " + col);
+    }
+
+    // package private, for benchmarks
+    static String buildInsert(String insert, String table, String[] cols) {
+        StringBuilder sql = new StringBuilder(insert).append(" INTO ").append(table).append("(");
+        StringBuilder params = new StringBuilder();
+        for (int i = 0; i < cols.length; i++) {
+            if (0 < i) {
+                sql.append(",");
+                params.append(",");
+            }
+            sql.append(cols[i]);
+            params.append("?");
+        }
+        return sql.append(") VALUES(").append(params).append(")").toString();
+    }
+
+    // Numbered parameters: the update binds exactly like the insert.
+    // A column missing from the row binds null, and keeps its value:
+    // a partial row updates only the columns it has.  The WHERE clause
+    // skips rows in which nothing would change.
+    private static String buildUpdate(String table, String[] cols, int keyIdx) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        StringBuilder changed = new StringBuilder();
+        for (int i = 0; i < cols.length; i++) {
+            if (keyIdx == i) { continue; }
+            if (0 < changed.length()) {
+                sql.append(",");
+                changed.append(" OR ");
+            }
+            String val = "coalesce(?" + (i + 1) + "," + cols[i] + ")";
+            sql.append(cols[i]).append("=").append(val);
+            changed.append(cols[i]).append(" IS NOT ").append(val);
+        }
+        return sql
+            .append(" WHERE ").append(cols[keyIdx]).append("=?").append(keyIdx + 1)
+            .append(" AND (").append(changed).append(")")
+            .toString();
+    }
+}
@@ -1,14 +1,23 @@
 package com.twitter.university.android.yamba.data;
 
 import android.content.ContentValues;
+import android.database.sqlite.SQLiteStatement;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 
 
 /**
+ * A column map is compiled once, by its builder: the virtual column
+ * names and their definitions are resolved into parallel arrays,
+ * in declaration order, so that translating or binding a row
+ * requires neither a map lookup nor any new allocation,
+ * beyond the values themselves.
+ *
+ * A column may store its values as integer keys: its
+ * {@link KeyEncoder} maps each value to its key, as it is bound.
  *
  * @version $Revision: $
  * @author <a href="mailto:blake.meike@gmail.com">G. Blake Meike</a>
@@ -16,22 +25,135 @@ import java.util.Map.Entry;
 public class ColumnMap {
     /** Column Type */
     public static enum Type {
-        /** boolean */ BOOLEAN,
-        /** byte */ BYTE,
-        /** byte[] */ BYTEARRAY,
-        /** double */ DOUBLE,
-        /** float */ FLOAT,
-        /** int */ INTEGER,
-        /** long */ LONG,
-        /** short */ SHORT,
-        /** String */ STRING
+        /** boolean */ BOOLEAN {
+            @Override
+            void copy(String dstCol, Object val, ContentValues dst) {
+                dst.put(dstCol, (val instanceof Boolean) ? (Boolean) val : Boolean.valueOf(asBoolean(val)));
+            }
+            @Override
+            void bind(SQLiteStatement stmt, int idx, Object val) {
+                stmt.bindLong(idx, asBoolean(val) ? 1 : 0);
+            }
+        },
+        /** byte */ BYTE {
+            @Override
+            void copy(String dstCol, Object val, ContentValues dst) {
+                dst.put(dstCol, (val instanceof Byte) ? (Byte) val : Byte.valueOf((byte) asLong(val)));
+            }
+        },
+        /** byte[] */ BYTEARRAY {
+            @Override
+            void copy(String dstCol, Object val, ContentValues dst) {
+                dst.put(dstCol, (byte[]) val);
+            }
+            @Override
+            void bind(SQLiteStatement stmt, int idx, Object val) {
+                stmt.bindBlob(idx, (byte[]) val);
+            }
+        },
+        /** double */ DOUBLE {
+            @Override
+            void copy(String dstCol, Object val, ContentValues dst) {
+                dst.put(dstCol, (val instanceof Double) ? (Double) val : Double.valueOf(asDouble(val)));
+            }
+            @Override
+            void bind(SQLiteStatement stmt, int idx, Object val) {
+                stmt.bindDouble(idx, asDouble(val));
+            }
+        },
+        /** float */ FLOAT {
+            @Override
+            void copy(String dstCol, Object val, ContentValues dst) {
+                dst.put(dstCol, (val instanceof Float) ? (Float) val : Float.valueOf((float) asDouble(val)));
+            }
+            @Override
+            void bind(SQLiteStatement stmt, int idx, Object val) {
+                stmt.bindDouble(idx, asDouble(val));
+            }
+        },
+        /** int */ INTEGER {
+            @Override
+            void copy(String dstCol, Object val, ContentValues dst) {
+                dst.put(dstCol, (val instanceof Integer) ? (Integer) val : Integer.valueOf((int) asLong(val)));
+            }
+        },
+        /** long */ LONG {
+            @Override
+            void copy(String dstCol, Object val, ContentValues dst) {
+                dst.put(dstCol, (val instanceof Long) ? (Long) val : Long.valueOf(asLong(val)));
+            }
+        },
+        /** short */ SHORT {
+            @Override
+            void copy(String dstCol, Object val, ContentValues dst) {
+                dst.put(dstCol, (val instanceof Short) ? (Short) val : Short.valueOf((short) asLong(val)));
+            }
+        },
+        /** String */ STRING {
+            @Override
+            void copy(String dstCol, Object val, ContentValues dst) {
+                dst.put(dstCol, val.toString());
+            }
+            @Override
+            void bind(SQLiteStatement stmt, int idx, Object val) {
+                stmt.bindString(idx, val.toString());
+            }
+        };
+
+        /**
+         * @param dstCol the target column
+         * @param val the non-null value to copy
+         * @param dst target content vals
+         */
+        abstract void copy(String dstCol, Object val, ContentValues dst);
+
+        /**
+         * Integral types bind as longs: override for others.
+         *
+         * @param stmt the target statement
+         * @param idx the 1-based bind index
+         * @param val the non-null value to bind
+         */
+        void bind(SQLiteStatement stmt, int idx, Object val) {
+            stmt.bindLong(idx, asLong(val));
+        }
+
+        static boolean asBoolean(Object val) {
+            if (val instanceof Boolean) { return ((Boolean) val).booleanValue(); }
+            if (val instanceof Number) { return 0 != ((Number) val).intValue(); }
+            return Boolean.parseBoolean(val.toString());
+        }
+
+        static long asLong(Object val) {
+            return (val instanceof Number)
+                ? ((Number) val).longValue()
+                : Long.parseLong(val.toString());
+        }
+
+        static double asDouble(Object val) {
+            return (val instanceof Number)
+                ? ((Number) val).doubleValue()
+                : Double.parseDouble(val.toString());
+        }
+    }
+
+    /**
+     * Maps the values of a virtual column to the integer keys
+     * stored in its actual column.
+     */
+    public static interface KeyEncoder {
+        /**
+         * @param val the non-null value to encode
+         * @return its key
+         */
+        long encode(Object val);
     }
 
     /**
      * Builder
      */
     public static class Builder {
-        private final Map<String, ColumnDef> colMap = new HashMap<String, ColumnDef>();
+        private final Map<String, ColumnDef> colMap = new LinkedHashMap<String, ColumnDef>();
 
         /**
          * @param virtCol the virtual column name
@@ -40,7 +162,18 @@ public class ColumnMap {
          * @return the builder
          */
         public Builder addColumn(String virtCol, String actCol, Type type) {
-            colMap.put(virtCol, new ColumnDef(actCol, type));
+            colMap.put(virtCol, new ColumnDef(actCol, type, null));
+            return this;
+        }
+
+        /**
+         * @param virtCol the virtual column name
+         * @param actCol the actual column name: holds longs
+         * @param encoder maps values to the keys stored
+         * @return the builder
+         */
+        public Builder addColumn(String virtCol, String actCol, KeyEncoder encoder) {
+            colMap.put(virtCol, new ColumnDef(actCol, Type.LONG, encoder));
             return this;
         }
 
@@ -53,59 +186,45 @@ public class ColumnMap {
     private static class ColumnDef {
         private final String name;
         private final Type type;
+        private final KeyEncoder encoder;
 
         /**
          * @param name column name
          * @param type column type
+         * @param encoder key encoder: null if values are stored as they are
          */
-        public ColumnDef(String name, Type type) {
+        public ColumnDef(String name, Type type, KeyEncoder encoder) {
             this.name = name;
             this.type = type;
-        }
-
-        /**
-         * @param srcCol the column to copy
-         * @param src source content vals
-         * @param dst target content vals
-         */
-        public void copy(String srcCol, ContentValues src, ContentValues dst) {
-            switch (type) {
-                case BOOLEAN:
-                    dst.put(name, src.getAsBoolean(srcCol));
-                    break;
-                case BYTE:
-                    dst.put(name, src.getAsByte(srcCol));
-                    break;
-                case BYTEARRAY:
-                    dst.put(name, src.getAsByteArray(srcCol));
-                    break;
-                case DOUBLE:
-                    dst.put(name, src.getAsDouble(srcCol));
-                    break;
-                case FLOAT:
-                    dst.put(name, src.getAsFloat(srcCol));
-                    break;
-                case INTEGER:
-                    dst.put(name, src.getAsInteger(srcCol));
-                    break;
-                case LONG:
-                    dst.put(name, src.getAsLong(srcCol));
-                    break;
-                case SHORT:
-                    dst.put(name, src.getAsShort(srcCol));
-                    break;
-                case STRING:
-                    dst.put(name, src.getAsString(srcCol));
-                    break;
-            }
+            this.encoder = encoder;
         }
     }
 
 
     private final Map<String, ColumnDef> colMap;
+    private final String[] virtCols;
+    private final String[] actCols;
+    private final Type[] types;
+    private final KeyEncoder[] encoders;
 
     ColumnMap(Map<String, ColumnDef> colMap) {
-        this.colMap = Collections.unmodifiableMap(colMap);
+        this.colMap = Collections.unmodifiableMap(new HashMap<String, ColumnDef>(colMap));
+
+        int n = colMap.size();
+        virtCols = new String[n];
+        actCols = new String[n];
+        types = new Type[n];
+        encoders = new KeyEncoder[n];
+
+        int i = 0;
+        for (Map.Entry<String, ColumnDef> col : colMap.entrySet()) {
+            ColumnDef colDef = col.getValue();
+            virtCols[i] = col.getKey();
+            actCols[i] = colDef.name;
+            types[i] = colDef.type;
+            encoders[i] = colDef.encoder;
+            i++;
+        }
     }
 
     /**
@@ -113,16 +232,65 @@ public class ColumnMap {
      * @return content values for actual table
      */
     public ContentValues translateCols(ContentValues vals) {
-        ContentValues newVals = new ContentValues();
-        for (Entry<String, Object> col : vals.valueSet()) {
-            String colName = col.getKey();
-            ColumnDef colDef = colMap.get(colName);
-            if (null == colDef) {
-                throw new IllegalArgumentException( "Unrecognized column: " + colName);
-            }
-            colDef.copy(colName, vals, newVals);
+        ContentValues newVals = new ContentValues(vals.size());
+        int n = 0;
+        for (int i = 0; i < virtCols.length; i++) {
+            String colName = virtCols[i];
+            if (!vals.containsKey(colName)) { continue; }
+            n++;
+            Object val = vals.get(colName);
+            if (null == val) { newVals.putNull(actCols[i]); }
+            else if (null != encoders[i]) { newVals.put(actCols[i], Long.valueOf(encoders[i].encode(val))); }
+            else { types[i].copy(actCols[i], val, newVals); }
         }
 
+        if (n != vals.size()) { checkCols(vals); }
+
         return newVals;
     }
+
+    /**
+     * @return a copy of the actual column names, in bind order
+     */
+    public String[] getActualCols() { return actCols.clone(); }
+
+    /**
+     * @param idx the index of a column, in bind order
+     * @return the virtual name of the column
+     */
+    public String getVirtualCol(int idx) { return virtCols[idx]; }
+
+    /**
+     * Bind a row of virtual content values to a statement compiled
+     * with the columns returned by {@link #getActualCols()}.
+     * Columns missing from the row are bound as null.
+     *
+     * @param stmt the target statement
+     * @param vals virtual content values
+     */
+    public void bindCols(SQLiteStatement stmt, ContentValues vals) {
+        int n = 0;
+        for (int i = 0; i < virtCols.length; i++) {
+            Object val = vals.get(virtCols[i]);
+            if (null != val) {
+                n++;
+                if (null != encoders[i]) { stmt.bindLong(i + 1, encoders[i].encode(val)); }
+                else { types[i].bind(stmt, i + 1, val); }
+            }
+            else {
+                if (vals.containsKey(virtCols[i])) { n++; }
+                stmt.bindNull(i + 1);
+            }
+        }
+
+        if (n != vals.size()) { checkCols(vals); }
+    }
+
+    private void checkCols(ContentValues vals) {
+        for (String colName : vals.keySet()) {
+            if (!colMap.containsKey(colName)) {
+                throw new IllegalArgumentException( "Unrecognized column: " + colName);
+            }
+        }
+    }
 }
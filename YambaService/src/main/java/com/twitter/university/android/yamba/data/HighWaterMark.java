@@ -0,0 +1,52 @@
+package com.twitter.university.android.yamba.data;
+
+
+/**
+ * The newest timestamp and largest id in the timeline.
+ * Immutable: the provider publishes a new instance, atomically,
+ * each time a write advances either value.
+ */
+final class HighWaterMark {
+    /** The mark for an empty timeline */
+    public static final HighWaterMark EMPTY = new HighWaterMark(Long.MIN_VALUE, Long.MIN_VALUE);
+
+    private final long timestamp;
+    private final long id;
+
+    /**
+     * @param timestamp the max timestamp
+     * @param id the max id
+     */
+    public HighWaterMark(long timestamp, long id) {
+        this.timestamp = timestamp;
+        this.id = id;
+    }
+
+    /**
+     * @return true iff the timeline was empty, when this mark was taken
+     */
+    public boolean isEmpty() { return Long.MIN_VALUE == timestamp; }
+
+    /**
+     * @return the max timestamp
+     */
+    public long getTimestamp() { return timestamp; }
+
+    /**
+     * @return the max id
+     */
+    public long getId() { return id; }
+
+    /**
+     * @param other another mark
+     * @return a mark that is the max, in each value, of this and the other
+     */
+    public HighWaterMark max(HighWaterMark other) {
+        if ((timestamp >= other.timestamp) && (id >= other.id)) { return this; }
+        if ((other.timestamp >= timestamp) && (other.id >= id)) { return other; }
+        return new HighWaterMark(Math.max(timestamp, other.timestamp), Math.max(id, other.id));
+    }
+
+    @Override
+    public String toString() { return "HWM(" + timestamp + ", " + id + ")"; }
+}
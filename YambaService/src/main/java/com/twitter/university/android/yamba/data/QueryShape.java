@@ -0,0 +1,88 @@
+package com.twitter.university.android.yamba.data;
+
+import java.util.Arrays;
+
+
+/**
+ * Everything that determines the SQL for a provider query:
+ * the key for the provider's cache of built queries.
+ * Values that vary from query to query, like ids and
+ * timestamps, are bound as arguments: they are not part of the shape.
+ */
+final class QueryShape {
+    /** the query selects a single row, by id */
+    public static final int WHERE_PK = 0x01;
+    /** the query selects a page of rows, before a row key */
+    public static final int WHERE_BEFORE = 0x02;
+    /** the query selects rows with larger ids than a watermark */
+    public static final int WHERE_SINCE = 0x04;
+    /** the query matches a full text search */
+    public static final int WHERE_MATCH = 0x08;
+
+    final int match;
+    final String[] proj;
+    final String sel;
+    final String sort;
+    final String limit;
+    final int where;
+
+    private final int hash;
+
+    /**
+     * @param match the uri match type
+     * @param proj the requested columns: null for all
+     * @param sel the client's selection
+     * @param sort the sort order
+     * @param limit the row limit
+     * @param where the WHERE_ clauses added by the provider
+     */
+    public QueryShape(int match, String[] proj, String sel, String sort, String limit, int where) {
+        this.match = match;
+        this.proj = proj;
+        this.sel = sel;
+        this.sort = sort;
+        this.limit = limit;
+        this.where = where;
+
+        int h = match;
+        h = 31 * h + Arrays.hashCode(proj);
+        h = 31 * h + hashCode(sel);
+        h = 31 * h + hashCode(sort);
+        h = 31 * h + hashCode(limit);
+        this.hash = 31 * h + where;
+    }
+
+    /**
+     * The client owns the projection array: a cached shape needs its own.
+     *
+     * @return a copy of this shape, safe to use as a cache key
+     */
+    public QueryShape copy() {
+        return (null == proj)
+            ? this
+            : new QueryShape(match, proj.clone(), sel, sort, limit, where);
+    }
+
+    @Override
+    public int hashCode() { return hash; }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) { return true; }
+        if (!(o instanceof QueryShape)) { return false; }
+        QueryShape other = (QueryShape) o;
+        return (hash == other.hash)
+            && (match == other.match)
+            && (where == other.where)
+            && equals(sel, other.sel)
+            && equals(sort, other.sort)
+            && equals(limit, other.limit)
+            && Arrays.equals(proj, other.proj);
+    }
+
+    private static int hashCode(String s) { return (null == s) ? 0 : s.hashCode(); }
+
+    private static boolean equals(String s1, String s2) {
+        return (null == s1) ? (null == s2) : s1.equals(s2);
+    }
+}
@@ -0,0 +1,382 @@
+package com.twitter.university.android.yamba.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.twitter.university.android.yamba.service.YambaContract;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * The newest rows of the timeline, newest first, in memory.
+ * Bounded by a max number of rows and a max number of characters.
+ *
+ * The rows are held in an immutable snapshot, of column arrays,
+ * that is replaced atomically: writers merge new rows into a copy.
+ * Any other change simply drops the snapshot: the next query reloads it.
+ *
+ * A load races with writes: it is published only if no write
+ * happened while it was loading.  Every writer advances the
+ * generation, after it commits and before it touches the snapshot.
+ */
+class TimelineCache {
+    /** The cached columns, by index */
+    static final String[] COLUMNS = new String[] {
+        YambaContract.Timeline.Columns.ID,
+        YambaContract.Timeline.Columns.TIMESTAMP,
+        YambaContract.Timeline.Columns.HANDLE,
+        YambaContract.Timeline.Columns.TWEET
+    };
+    private static final int COL_ID = 0;
+    private static final int COL_TIMESTAMP = 1;
+    private static final int COL_HANDLE = 2;
+    private static final int COL_TWEET = 3;
+
+    private static final String QUERY_NEWEST
+        = "SELECT " + YambaDbHelper.COL_ID + "," + YambaDbHelper.COL_TIMESTAMP
+            + "," + YambaDbHelper.COL_HANDLE + "," + YambaDbHelper.COL_TWEET
+            + " FROM " + YambaDbHelper.JOIN_TIMELINE_USERS
+            + " ORDER BY " + YambaDbHelper.COL_TIMESTAMP + " DESC," + YambaDbHelper.COL_ID + " DESC"
+            + " LIMIT ?";
+
+    // Immutable: never modified, once published.
+    private static final class Snapshot {
+        final long[] ids;
+        final long[] timestamps;
+        final String[] handles;
+        final String[] tweets;
+        final int size;
+        // true iff these are all of the rows in the timeline
+        final boolean complete;
+
+        Snapshot(long[] ids, long[] timestamps, String[] handles, String[] tweets, int size, boolean complete) {
+            this.ids = ids;
+            this.timestamps = timestamps;
+            this.handles = handles;
+            this.tweets = tweets;
+            this.size = size;
+            this.complete = complete;
+        }
+    }
+
+    // Builds a snapshot, newest row first, within the bounds.
+    private final class SnapshotBuilder {
+        final long[] ids = new long[maxRows];
+        final long[] timestamps = new long[maxRows];
+        final String[] handles = new String[maxRows];
+        final String[] tweets = new String[maxRows];
+        int size;
+        int chars;
+        boolean full;
+
+        // returns false iff the row did not fit
+        boolean add(long id, long timestamp, String handle, String tweet) {
+            if (full) { return false; }
+            int n = chars + length(handle) + length(tweet);
+            if ((size >= maxRows) || (n > maxChars)) {
+                full = true;
+                return false;
+            }
+            ids[size] = id;
+            timestamps[size] = timestamp;
+            handles[size] = handle;
+            tweets[size] = tweet;
+            chars = n;
+            size++;
+            return true;
+        }
+
+        Snapshot build(boolean complete) {
+            return new Snapshot(ids, timestamps, handles, tweets, size, complete && !full);
+        }
+    }
+
+    // A read-only cursor over a subset of the rows of a snapshot
+    private static final class SnapshotCursor extends AbstractCursor {
+        private final Snapshot snapshot;
+        private final int[] rows;
+        private final int count;
+        private final String[] colNames;
+        private final int[] cols;
+
+        SnapshotCursor(Snapshot snapshot, int[] rows, int count, String[] colNames, int[] cols) {
+            this.snapshot = snapshot;
+            this.rows = rows;
+            this.count = count;
+            this.colNames = colNames;
+            this.cols = cols;
+        }
+
+        @Override public int getCount() { return count; }
+        @Override public String[] getColumnNames() { return colNames; }
+
+        @Override
+        public String getString(int col) {
+            int row = rows[mPos];
+            switch (cols[col]) {
+                case COL_ID: return String.valueOf(snapshot.ids[row]);
+                case COL_TIMESTAMP: return String.valueOf(snapshot.timestamps[row]);
+                case COL_HANDLE: return snapshot.handles[row];
+                default: return snapshot.tweets[row];
+            }
+        }
+
+        @Override
+        public long getLong(int col) {
+            int row = rows[mPos];
+            switch (cols[col]) {
+                case COL_ID: return snapshot.ids[row];
+                case COL_TIMESTAMP: return snapshot.timestamps[row];
+                default: return parseLong(getString(col));
+            }
+        }
+
+        @Override public short getShort(int col) { return (short) getLong(col); }
+        @Override public int getInt(int col) { return (int) getLong(col); }
+        @Override public float getFloat(int col) { return (float) getDouble(col); }
+
+        @Override
+        public double getDouble(int col) {
+            switch (cols[col]) {
+                case COL_ID:
+                case COL_TIMESTAMP:
+                    return getLong(col);
+                default:
+                    return parseDouble(getString(col));
+            }
+        }
+
+        @Override
+        public boolean isNull(int col) {
+            switch (cols[col]) {
+                case COL_ID:
+                case COL_TIMESTAMP:
+                    return false;
+                default:
+                    return null == getString(col);
+            }
+        }
+
+        @Override
+        public int getType(int col) {
+            switch (cols[col]) {
+                case COL_ID:
+                case COL_TIMESTAMP:
+                    return FIELD_TYPE_INTEGER;
+                default:
+                    return (null == getString(col)) ? FIELD_TYPE_NULL : FIELD_TYPE_STRING;
+            }
+        }
+
+        // like SQLite: a string that is not a number is 0
+        private static long parseLong(String val) {
+            if (null == val) { return 0; }
+            try { return Long.parseLong(val.trim()); }
+            catch (NumberFormatException e) { return 0; }
+        }
+
+        private static double parseDouble(String val) {
+            if (null == val) { return 0; }
+            try { return Double.parseDouble(val.trim()); }
+            catch (NumberFormatException e) { return 0; }
+        }
+    }
+
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>();
+    private final AtomicLong generation = new AtomicLong();
+    private final int maxRows;
+    private final int maxChars;
+
+    /**
+     * @param maxRows max rows to cache
+     * @param maxChars max characters, of handles and tweets, to cache
+     */
+    public TimelineCache(int maxRows, int maxChars) {
+        this.maxRows = maxRows;
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * @return false if the cache is disabled
+     */
+    public boolean isEnabled() { return 0 < maxRows; }
+
+    /**
+     * Serve a query for the newest rows, optionally for a single handle.
+     * The projection must contain only {@link #COLUMNS}.
+     *
+     * @param db the db, from which to load the cache if it is empty
+     * @param proj the columns: null for all
+     * @param handle return only rows with this handle: null for all handles
+     * @param limit max rows to return: negative for no limit
+     * @return a cursor, newest first, or null if the cache cannot answer
+     */
+    public Cursor query(SQLiteDatabase db, String[] proj, String handle, long limit) {
+        int[] cols = getColumns(proj);
+        if (null == cols) { return null; }
+
+        Snapshot s = snapshot.get();
+        if (null == s) { s = load(db); }
+
+        int max = (0 > limit) ? s.size : (int) Math.min(limit, s.size);
+        int[] rows = new int[max];
+        int n = 0;
+        for (int i = 0; (i < s.size) && (n < max); i++) {
+            if ((null == handle) || handle.equals(s.handles[i])) { rows[n++] = i; }
+        }
+
+        // short of the limit: some of the rows might not be cached
+        if (((0 > limit) || (n < limit)) && !s.complete) { return null; }
+
+        return new SnapshotCursor(s, rows, n, (null == proj) ? COLUMNS : proj, cols);
+    }
+
+    /**
+     * Merge new rows into the cache.  Called after they are committed.
+     *
+     * @param ids new row ids
+     * @param timestamps new row timestamps
+     * @param handles new row handles
+     * @param tweets new row tweets
+     * @param n the number of new rows
+     */
+    public void onInserted(long[] ids, long[] timestamps, String[] handles, String[] tweets, int n) {
+        generation.incrementAndGet();
+        sortNewestFirst(ids, timestamps, handles, tweets, n);
+        while (true) {
+            Snapshot s = snapshot.get();
+            if (null == s) { return; }
+            if (snapshot.compareAndSet(s, merge(s, ids, timestamps, handles, tweets, n))) { return; }
+        }
+    }
+
+    /**
+     * Drop the cache: called after any change other than an insert.
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        snapshot.set(null);
+    }
+
+    private Snapshot load(SQLiteDatabase db) {
+        long gen = generation.get();
+
+        SnapshotBuilder sb = new SnapshotBuilder();
+        boolean complete = true;
+        Cursor c = db.rawQuery(QUERY_NEWEST, new String[] { String.valueOf(maxRows + 1) });
+        try {
+            while (c.moveToNext()) {
+                if (!sb.add(c.getLong(0), c.getLong(1), c.getString(2), c.getString(3))) {
+                    complete = false;
+                    break;
+                }
+            }
+        }
+        finally {
+            c.close();
+        }
+        Snapshot s = sb.build(complete);
+
+        // Publish, and then check: a writer that missed
+        // the published snapshot has advanced the generation.
+        if (snapshot.compareAndSet(null, s) && (gen != generation.get())) {
+            snapshot.compareAndSet(s, null);
+        }
+        return s;
+    }
+
+    // Rows beyond the end of an incomplete snapshot are not cached:
+    // there may be uncached rows that are newer.
+    private Snapshot merge(
+        Snapshot s,
+        long[] ids,
+        long[] timestamps,
+        String[] handles,
+        String[] tweets,
+        int n)
+    {
+        SnapshotBuilder sb = new SnapshotBuilder();
+        int i = 0;
+        int j = 0;
+        while ((i < s.size) || (j < n)) {
+            int cmp;
+            if (i >= s.size) {
+                if (!s.complete) { break; }
+                cmp = 1;
+            }
+            else if (j >= n) { cmp = -1; }
+            else { cmp = compare(s.timestamps[i], s.ids[i], timestamps[j], ids[j]); }
+
+            boolean added;
+            if (0 >= cmp) {
+                added = sb.add(s.ids[i], s.timestamps[i], s.handles[i], s.tweets[i]);
+                // a load may already contain a newly inserted row
+                if (0 == cmp) { j++; }
+                i++;
+            }
+            else {
+                added = sb.add(ids[j], timestamps[j], handles[j], tweets[j]);
+                j++;
+            }
+            if (!added) { break; }
+        }
+        return sb.build(s.complete);
+    }
+
+    // A bulk insert is small: an insertion sort is fine
+    private static void sortNewestFirst(
+        long[] ids,
+        long[] timestamps,
+        String[] handles,
+        String[] tweets,
+        int n)
+    {
+        for (int i = 1; i < n; i++) {
+            long id = ids[i];
+            long ts = timestamps[i];
+            String handle = handles[i];
+            String tweet = tweets[i];
+            int j = i - 1;
+            for (; (0 <= j) && (0 < compare(timestamps[j], ids[j], ts, id)); j--) {
+                ids[j + 1] = ids[j];
+                timestamps[j + 1] = timestamps[j];
+                handles[j + 1] = handles[j];
+                tweets[j + 1] = tweets[j];
+            }
+            ids[j + 1] = id;
+            timestamps[j + 1] = ts;
+            handles[j + 1] = handle;
+            tweets[j + 1] = tweet;
+        }
+    }
+
+    // negative iff row 1 is newer than row 2
+    private static int compare(long ts1, long id1, long ts2, long id2) {
+        if (ts1 != ts2) { return (ts1 > ts2) ? -1 : 1; }
+        if (id1 != id2) { return (id1 > id2) ? -1 : 1; }
+        return 0;
+    }
+
+    private static int[] getColumns(String[] proj) {
+        if (null == proj) { return new int[] { COL_ID, COL_TIMESTAMP, COL_HANDLE, COL_TWEET }; }
+        int[] cols = new int[proj.length];
+        for (int i = 0; i < proj.length; i++) {
+            cols[i] = indexOf(proj[i]);
+            if (0 > cols[i]) { return null; }
+        }
+        return cols;
+    }
+
+    private static int indexOf(String col) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(col)) { return i; }
+        }
+        return -1;
+    }
+
+    private static int length(String s) { return (null == s) ? 0 : s.length(); }
+}
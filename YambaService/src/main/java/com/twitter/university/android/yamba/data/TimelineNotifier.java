@@ -0,0 +1,96 @@
+package com.twitter.university.android.yamba.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.twitter.university.android.yamba.service.YambaContract;
+
+
+/**
+ * Coalesces timeline change notifications.  The first change
+ * schedules a single notification, at the end of a short window:
+ * every change until then is merged into it.
+ *
+ * If every row in the burst was inserted with an id larger than
+ * the timeline's previous max id, the notification uri carries
+ * a hint: the ids of the new rows are in the range given by
+ * the Timeline PARAM_SINCE and PARAM_NEWEST parameters.
+ * Any other change is reported on the plain timeline uri.
+ */
+class TimelineNotifier {
+    private static final String TAG = "NOTIFIER";
+
+    private final Runnable flush = new Runnable() {
+        @Override public void run() { flush(); }
+    };
+
+    private final ContentResolver resolver;
+    private final Handler handler;
+    private final long window;
+
+    // guarded by this
+    private boolean pending;
+    private boolean full;
+    private long since;
+    private long newest;
+
+    /**
+     * @param resolver the resolver through which to notify
+     * @param window ms to wait for further changes, before notifying
+     */
+    public TimelineNotifier(ContentResolver resolver, long window) {
+        this.resolver = resolver;
+        this.window = window;
+        this.handler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * @param since the max id in the timeline, before the insert
+     * @param newest the max id inserted
+     */
+    public void notifyInserted(long since, long newest) {
+        synchronized (this) {
+            if (pending) {
+                this.since = Math.min(this.since, since);
+                this.newest = Math.max(this.newest, newest);
+                return;
+            }
+            pending = true;
+            full = false;
+            this.since = since;
+            this.newest = newest;
+        }
+        handler.postDelayed(flush, window);
+    }
+
+    /**
+     * Notify of a change that cannot be described by a hint.
+     */
+    public void notifyChanged() {
+        synchronized (this) {
+            full = true;
+            if (pending) { return; }
+            pending = true;
+        }
+        handler.postDelayed(flush, window);
+    }
+
+    private void flush() {
+        Uri uri = YambaContract.Timeline.URI;
+        synchronized (this) {
+            if (!pending) { return; }
+            pending = false;
+            if (!full) {
+                uri = uri.buildUpon()
+                    .appendQueryParameter(YambaContract.Timeline.PARAM_SINCE, String.valueOf(since))
+                    .appendQueryParameter(YambaContract.Timeline.PARAM_NEWEST, String.valueOf(newest))
+                    .build();
+            }
+        }
+        Log.d(TAG, "notify: " + uri);
+        resolver.notifyChange(uri, null);
+    }
+}
@@ -0,0 +1,216 @@
+package com.twitter.university.android.yamba.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Enforces the timeline retention policy: a max row count,
+ * a max age and a max number of rows per handle.  Any limit
+ * that is not positive is not enforced.
+ *
+ * Rows are deleted, oldest first, in small batches, each in its own
+ * transaction, so that the write lock is never held for long.
+ * Freed pages are then returned to the file system with an
+ * incremental vacuum and, when the db is in WAL mode, a checkpoint.
+ * A db created before the timeline was pruned is not in incremental
+ * vacuum mode: the first prune converts it, with a single full vacuum.
+ * A prune may take a while: it should be run in the background.
+ * Users are never deleted: see {@link UserMap}.
+ */
+class TimelinePruner {
+    private static final String TAG = "PRUNER";
+
+    private static final int BATCH_SIZE = 200;
+    private static final int VACUUM_PAGES = 256;
+
+    private static final String SORT_NEWEST
+        = " ORDER BY " + YambaDbHelper.COL_TIMESTAMP + " DESC," + YambaDbHelper.COL_ID + " DESC";
+
+    private static final String DELETE_IDS
+        = "DELETE FROM " + YambaDbHelper.TABLE_TIMELINE
+            + " WHERE " + YambaDbHelper.COL_ID + " IN (";
+
+    private static final String PRUNE_AGE
+        = DELETE_IDS + "SELECT " + YambaDbHelper.COL_ID + " FROM " + YambaDbHelper.TABLE_TIMELINE
+            + " WHERE " + YambaDbHelper.COL_TIMESTAMP + "<?"
+            + " LIMIT " + BATCH_SIZE + ")";
+
+    private static final String PRUNE_ROWS
+        = DELETE_IDS + "SELECT " + YambaDbHelper.COL_ID + " FROM " + YambaDbHelper.TABLE_TIMELINE
+            + SORT_NEWEST
+            + " LIMIT " + BATCH_SIZE + " OFFSET ?)";
+
+    private static final String PRUNE_HANDLE
+        = DELETE_IDS + "SELECT " + YambaDbHelper.COL_ID + " FROM " + YambaDbHelper.TABLE_TIMELINE
+            + " WHERE " + YambaDbHelper.COL_USER_ID + "=?"
+            + SORT_NEWEST
+            + " LIMIT " + BATCH_SIZE + " OFFSET ?)";
+
+    // string args would compare as text
+    private static final String QUERY_BIG_USERS
+        = "SELECT " + YambaDbHelper.COL_USER_ID + " FROM " + YambaDbHelper.TABLE_TIMELINE
+            + " GROUP BY " + YambaDbHelper.COL_USER_ID
+            + " HAVING count(*)>CAST(? AS INTEGER)";
+
+    /** What a prune reclaimed */
+    public static class Result {
+        private final int rows;
+        private final long bytes;
+
+        Result(int rows, long bytes) {
+            this.rows = rows;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the number of rows deleted
+         */
+        public int getRows() { return rows; }
+
+        /**
+         * @return the number of bytes by which the file shrank
+         */
+        public long getBytes() { return bytes; }
+
+        @Override
+        public String toString() { return "pruned " + rows + " rows, " + bytes + " bytes"; }
+    }
+
+    private final int maxRows;
+    private final long maxAge;
+    private final int maxPerHandle;
+
+    /**
+     * @param maxRows max rows in the timeline
+     * @param maxAge max age of a row, in ms
+     * @param maxPerHandle max rows in the timeline for any handle
+     */
+    public TimelinePruner(int maxRows, long maxAge, int maxPerHandle) {
+        this.maxRows = maxRows;
+        this.maxAge = maxAge;
+        this.maxPerHandle = maxPerHandle;
+    }
+
+    /**
+     * Must not be called from within a transaction.
+     *
+     * @param db the database
+     * @return what was reclaimed
+     */
+    public Result prune(SQLiteDatabase db) {
+        enableIncrementalVacuum(db);
+
+        long pageSize = db.getPageSize();
+        long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+
+        int rows = 0;
+        if (0 < maxAge) {
+            SQLiteStatement stmt = db.compileStatement(PRUNE_AGE);
+            try {
+                stmt.bindLong(1, System.currentTimeMillis() - maxAge);
+                rows += pruneBatches(db, stmt);
+            }
+            finally {
+                stmt.close();
+            }
+        }
+
+        if (0 < maxPerHandle) {
+            SQLiteStatement stmt = db.compileStatement(PRUNE_HANDLE);
+            try {
+                stmt.bindLong(2, maxPerHandle);
+                for (long userId: getBigUsers(db)) {
+                    stmt.bindLong(1, userId);
+                    rows += pruneBatches(db, stmt);
+                }
+            }
+            finally {
+                stmt.close();
+            }
+        }
+
+        if (0 < maxRows) {
+            SQLiteStatement stmt = db.compileStatement(PRUNE_ROWS);
+            try {
+                stmt.bindLong(1, maxRows);
+                rows += pruneBatches(db, stmt);
+            }
+            finally {
+                stmt.close();
+            }
+        }
+
+        if (0 < rows) { vacuum(db); }
+
+        long bytes = (pages - DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)) * pageSize;
+
+        Result result = new Result(rows, bytes);
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    private int pruneBatches(SQLiteDatabase db, SQLiteStatement stmt) {
+        int total = 0;
+        while (true) {
+            int n;
+            db.beginTransactionNonExclusive();
+            try {
+                n = stmt.executeUpdateDelete();
+                db.setTransactionSuccessful();
+            }
+            finally {
+                db.endTransaction();
+            }
+            total += n;
+            if (BATCH_SIZE > n) { return total; }
+        }
+    }
+
+    private List<Long> getBigUsers(SQLiteDatabase db) {
+        List<Long> users = new ArrayList<Long>();
+        Cursor c = db.rawQuery(QUERY_BIG_USERS, new String[] { String.valueOf(maxPerHandle) });
+        try {
+            while (c.moveToNext()) { users.add(Long.valueOf(c.getLong(0))); }
+        }
+        finally {
+            c.close();
+        }
+        return users;
+    }
+
+    // auto_vacuum can only be changed by a full vacuum.
+    // It takes time and the write lock, but happens just once.
+    private void enableIncrementalVacuum(SQLiteDatabase db) {
+        if (YambaDbHelper.isIncrementalVacuum(db)) { return; }
+        Log.d(TAG, "enable incremental vacuum");
+        db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+        db.execSQL("VACUUM");
+    }
+
+    // Frees pages in small steps, too: each step is a write.
+    private void vacuum(SQLiteDatabase db) {
+        if (!YambaDbHelper.isIncrementalVacuum(db)) { return; }
+        while (0 < DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null)) {
+            Cursor c = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")", null);
+            try { c.moveToFirst(); }
+            finally { c.close(); }
+        }
+        checkpoint(db);
+    }
+
+    // In WAL mode, the file shrinks only when the log is checkpointed.
+    // A passive checkpoint never waits for readers.
+    private void checkpoint(SQLiteDatabase db) {
+        if (!YambaDbHelper.isWriteAheadLogging(db)) { return; }
+        Cursor c = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try { c.moveToFirst(); }
+        finally { c.close(); }
+    }
+}
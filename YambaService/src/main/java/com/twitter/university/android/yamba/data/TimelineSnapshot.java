@@ -0,0 +1,166 @@
+package com.twitter.university.android.yamba.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.twitter.university.android.yamba.service.YambaContract;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/**
+ * The timeline snapshot format, and its reader and writer.
+ * See {@link YambaContract.Snapshot}.
+ *
+ * A snapshot is a header: the int MAGIC and the int VERSION,
+ * followed by the rows, each preceded by the byte 1, and
+ * terminated by the byte 0.  A row is its id and timestamp,
+ * as longs, and then its handle and its tweet, each as an int
+ * byte count followed by that many bytes of UTF-8: -1 for null.
+ * All numbers are big-endian.
+ *
+ * A stream that ends before the terminator is truncated.
+ * A string longer than MAX_STRING_BYTES is malformed: the writer
+ * refuses to write one, so that every export can be imported.
+ */
+final class TimelineSnapshot {
+    /** First int in every snapshot */
+    public static final int MAGIC = YambaContract.Snapshot.MAGIC;
+    /** The format version */
+    public static final int VERSION = YambaContract.Snapshot.VERSION;
+
+    private static final int ROW = 1;
+    private static final int END = 0;
+    /** The longest string, in bytes */
+    public static final int MAX_STRING_BYTES = YambaContract.Snapshot.MAX_STRING_BYTES;
+
+    private static final String UTF_8 = "UTF-8";
+
+    // Enough for a tweet: 140 characters, of at most 4 bytes each.
+    // The reader's buffer grows, for longer strings, but never past
+    // MAX_STRING_BYTES, whatever the stream claims.
+    private static final int STRING_BUF_BYTES = 4 * 140;
+
+    // Keyset paging, by id: each page is a short query, that never
+    // blocks a writer, and no row is skipped or repeated.
+    private static final int EXPORT_PAGE_ROWS = 1000;
+    private static final String QUERY_EXPORT
+        = "SELECT " + YambaDbHelper.COL_ID + "," + YambaDbHelper.COL_TIMESTAMP
+            + "," + YambaDbHelper.COL_HANDLE + "," + YambaDbHelper.COL_TWEET
+            + " FROM " + YambaDbHelper.JOIN_TIMELINE_USERS
+            + " WHERE " + YambaDbHelper.COL_ID + ">?"
+            + " ORDER BY " + YambaDbHelper.COL_ID
+            + " LIMIT " + EXPORT_PAGE_ROWS;
+
+    /**
+     * Reads the rows of a snapshot.
+     */
+    public static final class Reader {
+        private final DataInputStream in;
+        private byte[] buf = new byte[STRING_BUF_BYTES];
+
+        /**
+         * @param in the snapshot stream: buffered
+         * @throws IOException if the stream is not a snapshot
+         */
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            if (MAGIC != this.in.readInt()) { throw new IOException("Not a snapshot"); }
+            int version = this.in.readInt();
+            if (VERSION != version) { throw new IOException("Unsupported snapshot version: " + version); }
+        }
+
+        /**
+         * @param row filled with the next row, in timeline virtual columns
+         * @return false at the end of the snapshot
+         * @throws IOException if the snapshot is malformed or truncated
+         */
+        public boolean read(ContentValues row) throws IOException {
+            switch (in.readByte()) {
+                case ROW:
+                    break;
+                case END:
+                    return false;
+                default:
+                    throw new IOException("Malformed snapshot");
+            }
+            row.put(YambaContract.Timeline.Columns.ID, Long.valueOf(in.readLong()));
+            row.put(YambaContract.Timeline.Columns.TIMESTAMP, Long.valueOf(in.readLong()));
+            row.put(YambaContract.Timeline.Columns.HANDLE, readString());
+            row.put(YambaContract.Timeline.Columns.TWEET, readString());
+            return true;
+        }
+
+        private String readString() throws IOException {
+            int n = in.readInt();
+            if (0 > n) { return null; }
+            if (n > MAX_STRING_BYTES) { throw new IOException("Malformed snapshot: string too long: " + n); }
+            if (n > buf.length) { buf = new byte[Math.min(MAX_STRING_BYTES, Math.max(n, 2 * buf.length))]; }
+            in.readFully(buf, 0, n);
+            return new String(buf, 0, n, UTF_8);
+        }
+    }
+
+    private TimelineSnapshot() { }
+
+    /**
+     * Write the whole timeline, in id order.
+     * Rows written during the export may or may not be included.
+     *
+     * @param db the db
+     * @param out the snapshot stream: buffered
+     * @return the number of rows written
+     * @throws IOException on failure to write, or if a row
+     *   has a string longer than MAX_STRING_BYTES
+     */
+    public static int export(SQLiteDatabase db, OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(MAGIC);
+        dout.writeInt(VERSION);
+
+        int rows = 0;
+        long last = Long.MIN_VALUE;
+        while (true) {
+            int n = 0;
+            Cursor c = db.rawQuery(QUERY_EXPORT, new String[] { String.valueOf(last) });
+            try {
+                while (c.moveToNext()) {
+                    last = c.getLong(0);
+                    dout.writeByte(ROW);
+                    dout.writeLong(last);
+                    dout.writeLong(c.getLong(1));
+                    writeString(dout, c.getString(2), last);
+                    writeString(dout, c.getString(3), last);
+                    n++;
+                }
+            }
+            finally {
+                c.close();
+            }
+            rows += n;
+            if (EXPORT_PAGE_ROWS > n) { break; }
+        }
+
+        dout.writeByte(END);
+        dout.flush();
+        return rows;
+    }
+
+    private static void writeString(DataOutputStream out, String s, long id) throws IOException {
+        if (null == s) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(UTF_8);
+        if (b.length > MAX_STRING_BYTES) {
+            throw new IOException("Cannot export row " + id + ": string too long: " + b.length);
+        }
+        out.writeInt(b.length);
+        out.write(b);
+    }
+}
@@ -0,0 +1,61 @@
+package com.twitter.university.android.yamba.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.util.LruCache;
+
+
+/**
+ * Maps handles to their ids in the users table, adding
+ * any handle that is not already there.
+ *
+ * Users are never deleted: a cached id stays valid, as long as
+ * the transaction that added it commits.  A writer whose transaction
+ * fails must clear the map, before it ends the transaction: it may
+ * hold ids that are about to be rolled back.
+ */
+class UserMap {
+    private static final String QUERY_USER
+        = "SELECT " + YambaDbHelper.COL_USER_ID + " FROM " + YambaDbHelper.TABLE_USERS
+            + " WHERE " + YambaDbHelper.COL_HANDLE + "=?";
+
+    // LruCache is thread safe
+    private final LruCache<String, Long> ids;
+
+    /**
+     * @param size max handles to cache
+     */
+    public UserMap(int size) {
+        ids = new LruCache<String, Long>(size);
+    }
+
+    /**
+     * Must be called from within the writing transaction.
+     *
+     * @param db the db
+     * @param handle a handle
+     * @return the handle's user id
+     */
+    public long getId(SQLiteDatabase db, String handle) {
+        Long id = ids.get(handle);
+        if (null != id) { return id.longValue(); }
+
+        long userId;
+        try { userId = DatabaseUtils.longForQuery(db, QUERY_USER, new String[] { handle }); }
+        catch (SQLiteDoneException e) {
+            ContentValues vals = new ContentValues(1);
+            vals.put(YambaDbHelper.COL_HANDLE, handle);
+            userId = db.insertOrThrow(YambaDbHelper.TABLE_USERS, null, vals);
+        }
+
+        ids.put(handle, Long.valueOf(userId));
+        return userId;
+    }
+
+    /**
+     * Forget every cached id.
+     */
+    public void clear() { ids.evictAll(); }
+}
@@ -1,8 +1,10 @@
 package com.twitter.university.android.yamba.data;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
 
 
@@ -10,35 +12,246 @@ class YambaDbHelper extends SQLiteOpenHelper {
     private static final String TAG = "DB";
 
     public static final String DATABASE = "yamba.db";
-    public static final int VERSION = 3;
+    public static final int VERSION = 7;
 
     static final String TABLE_TIMELINE = "p_timeline";
     static final String COL_ID = "p_id";
     static final String COL_TIMESTAMP = "p_timestamp";
-    static final String COL_HANDLE = "p_handle";
+    static final String COL_USER_ID = "p_user_id";
     static final String COL_TWEET = "p_tweet";
 
+    static final String TABLE_USERS = "p_users";
+    static final String COL_HANDLE = "p_handle";
+
+    // The timeline, with each row's handle
+    static final String JOIN_TIMELINE_USERS
+        = TABLE_TIMELINE + " JOIN " + TABLE_USERS
+            + " ON (" + TABLE_USERS + "." + COL_USER_ID + "=" + TABLE_TIMELINE + "." + COL_USER_ID + ")";
+
+    static final String TABLE_OUTBOX = "p_outbox";
+    static final String COL_CREATED = "p_created";
+    static final String COL_ATTEMPTS = "p_attempts";
+    static final String COL_NEXT_ATTEMPT = "p_next_attempt";
+
+    static final String TABLE_TIMELINE_SEARCH = "p_timeline_fts";
+    static final String VIEW_TIMELINE_SEARCH = "p_timeline_fts_content";
+    static final String COL_DOCID = "docid";
+
+    static final String IDX_TIMELINE_TIMESTAMP = "p_timeline_timestamp";
+    static final String IDX_TIMELINE_USER = "p_timeline_user_timestamp";
+
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    // Checkpoint rarely enough that a full poll commits without one,
+    // but cap the size to which the log is allowed to grow.
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+    private static final int WAL_SIZE_LIMIT = 2 * 1024 * 1024;
+
+    // Compiled statements, per connection: the provider's query
+    // cache, plus the inserts, updates and deletes.
+    private static final int SQL_CACHE_SIZE = 64;
+
     private static final String TABLE_TIMELINE_V1 = "timeline";
+    private static final String TABLE_TIMELINE_V6 = "p_timeline_v6";
+    private static final String IDX_TIMELINE_HANDLE_V6 = "p_timeline_handle_timestamp";
+
+    /**
+     * @param db the database
+     * @return true iff freed pages can be returned with incremental_vacuum
+     */
+    static boolean isIncrementalVacuum(SQLiteDatabase db) {
+        return AUTO_VACUUM_INCREMENTAL == DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null);
+    }
 
     public YambaDbHelper(Context context) {
         super(context, DATABASE, null, VERSION);
     }
 
+    /**
+     * Write-ahead logging lets the provider's queries run on their own
+     * connections, concurrently with the single writer, and
+     * without waiting for its transactions to commit.
+     *
+     * @param db the database
+     * @return true iff the database is in WAL mode
+     */
+    static boolean isWriteAheadLogging(SQLiteDatabase db) {
+        return "wal".equalsIgnoreCase(DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null));
+    }
+
+    // auto_vacuum takes effect only on a new, empty db: an older db
+    // is vacuumed, once, by the pruner.  See TimelinePruner.
+    // The search triggers need recursive triggers: see createTimelineSearch.
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+        db.execSQL("PRAGMA recursive_triggers=ON");
+        db.enableWriteAheadLogging();
+    }
+
+    // Before API 16, onConfigure is never called.
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        db.execSQL("PRAGMA recursive_triggers=ON");
+        db.setMaxSqlCacheSize(SQL_CACHE_SIZE);
+        if (db.isReadOnly()) { return; }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+
+        // These pragmas return a row: they cannot be run with execSQL
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES, null);
+        DatabaseUtils.longForQuery(db, "PRAGMA journal_size_limit=" + WAL_SIZE_LIMIT, null);
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         Log.d(TAG, "create db");
+        createUsers(db);
+        createTimeline(db);
+        createTimelineIndices(db);
+        createOutbox(db);
+        createTimelineSearch(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        Log.d(TAG, "update db: " + oldVersion + " -> " + newVersion);
+        if (3 > oldVersion) {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_TIMELINE_V1);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_TIMELINE);
+            onCreate(db);
+            return;
+        }
+
+        if (5 > oldVersion) { createOutbox(db); }
+        if (7 > oldVersion) { upgradeTimelineV7(db); }
+    }
+
+    // v7: handles move to the users table, to which the timeline
+    // refers by id.  The timeline table is rebuilt, which also gives
+    // a v3 table TEXT affinity for its tweets (v3 declared STRING,
+    // which SQLite treats as NUMERIC): the v4 and v6 upgrades,
+    // an affinity fix and the search index, are subsumed.
+    // In a v3 table, equal handles may be stored as both text and
+    // numbers: the unique index makes them one user.
+    private void upgradeTimelineV7(SQLiteDatabase db) {
+        dropTimelineSearch(db);
+        db.execSQL("DROP INDEX IF EXISTS " + IDX_TIMELINE_TIMESTAMP);
+        db.execSQL("DROP INDEX IF EXISTS " + IDX_TIMELINE_HANDLE_V6);
+
+        createUsers(db);
+        db.execSQL(
+            "INSERT OR IGNORE INTO " + TABLE_USERS + "(" + COL_HANDLE + ")"
+                + " SELECT DISTINCT " + COL_HANDLE + " FROM " + TABLE_TIMELINE);
+
+        db.execSQL("ALTER TABLE " + TABLE_TIMELINE + " RENAME TO " + TABLE_TIMELINE_V6);
+        createTimeline(db);
+        db.execSQL(
+            "INSERT INTO " + TABLE_TIMELINE + "("
+                + COL_ID + "," + COL_TIMESTAMP + "," + COL_USER_ID + "," + COL_TWEET
+                + ") SELECT "
+                + "t." + COL_ID + ",t." + COL_TIMESTAMP + ",u." + COL_USER_ID + ",t." + COL_TWEET
+                + " FROM " + TABLE_TIMELINE_V6 + " t JOIN " + TABLE_USERS + " u"
+                + " ON (u." + COL_HANDLE + "=t." + COL_HANDLE + ")");
+        db.execSQL("DROP TABLE " + TABLE_TIMELINE_V6);
+        createTimelineIndices(db);
+
+        createTimelineSearch(db);
+        db.execSQL(
+            "INSERT INTO " + TABLE_TIMELINE_SEARCH + "(" + TABLE_TIMELINE_SEARCH + ")"
+                + " VALUES('rebuild')");
+    }
+
+    // v7: each handle, once.  The unique constraint's index maps
+    // handles to ids.
+    private void createUsers(SQLiteDatabase db) {
+        db.execSQL(
+            "CREATE TABLE " + TABLE_USERS + "("
+                + COL_USER_ID + " INTEGER PRIMARY KEY,"
+                + COL_HANDLE + " TEXT NOT NULL UNIQUE" + ")");
+    }
+
+    private void createTimeline(SQLiteDatabase db) {
         db.execSQL(
             "CREATE TABLE " + TABLE_TIMELINE + "("
                 + COL_ID + " INTEGER PRIMARY KEY,"
                 + COL_TIMESTAMP + " INTEGER NOT NULL,"
-                + COL_HANDLE + " STRING NOT NULL,"
-                + COL_TWEET + " STRING" + ")");
+                + COL_USER_ID + " INTEGER NOT NULL,"
+                + COL_TWEET + " TEXT" + ")");
     }
 
-    @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        Log.d(TAG, "update db");
-        db.execSQL("DROP TABLE " + TABLE_TIMELINE_V1);
-        onCreate(db);
+    // v5: posts waiting to be sent
+    private void createOutbox(SQLiteDatabase db) {
+        db.execSQL(
+            "CREATE TABLE " + TABLE_OUTBOX + "("
+                + COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + COL_TWEET + " TEXT NOT NULL,"
+                + COL_CREATED + " INTEGER NOT NULL,"
+                + COL_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0,"
+                + COL_NEXT_ATTEMPT + " INTEGER NOT NULL DEFAULT 0" + ")");
+    }
+
+    // v6: full text index of the timeline.  The FTS table is an external
+    // content table: it indexes, but does not copy, the timeline.
+    // Triggers keep it in sync, within each writing transaction.
+    // INSERT OR REPLACE fires the delete trigger only if recursive
+    // triggers are on: without it, the index is corrupted.
+    // v7: the content is a view, that joins each row's handle.
+    // FTS reads the content by rowid: the view names its id so.
+    private void createTimelineSearch(SQLiteDatabase db) {
+        db.execSQL(
+            "CREATE VIEW " + VIEW_TIMELINE_SEARCH + " AS SELECT "
+                + TABLE_TIMELINE + "." + COL_ID + " AS rowid,"
+                + TABLE_USERS + "." + COL_HANDLE + " AS " + COL_HANDLE + ","
+                + TABLE_TIMELINE + "." + COL_TWEET + " AS " + COL_TWEET
+                + " FROM " + JOIN_TIMELINE_USERS);
+        db.execSQL(
+            "CREATE VIRTUAL TABLE " + TABLE_TIMELINE_SEARCH + " USING fts4("
+                + "content=\"" + VIEW_TIMELINE_SEARCH + "\","
+                + COL_HANDLE + "," + COL_TWEET + ")");
+
+        String index = "INSERT INTO " + TABLE_TIMELINE_SEARCH
+            + "(" + COL_DOCID + "," + COL_HANDLE + "," + COL_TWEET + ")"
+            + " VALUES(new." + COL_ID
+            + ",(SELECT " + COL_HANDLE + " FROM " + TABLE_USERS
+            + " WHERE " + COL_USER_ID + "=new." + COL_USER_ID + ")"
+            + ",new." + COL_TWEET + ");";
+        String unindex = "DELETE FROM " + TABLE_TIMELINE_SEARCH
+            + " WHERE " + COL_DOCID + "=old." + COL_ID + ";";
+
+        db.execSQL(
+            "CREATE TRIGGER " + TABLE_TIMELINE_SEARCH + "_ai AFTER INSERT ON "
+                + TABLE_TIMELINE + " BEGIN " + index + " END");
+        db.execSQL(
+            "CREATE TRIGGER " + TABLE_TIMELINE_SEARCH + "_bd BEFORE DELETE ON "
+                + TABLE_TIMELINE + " BEGIN " + unindex + " END");
+        db.execSQL(
+            "CREATE TRIGGER " + TABLE_TIMELINE_SEARCH + "_bu BEFORE UPDATE ON "
+                + TABLE_TIMELINE + " BEGIN " + unindex + " END");
+        db.execSQL(
+            "CREATE TRIGGER " + TABLE_TIMELINE_SEARCH + "_au AFTER UPDATE ON "
+                + TABLE_TIMELINE + " BEGIN " + index + " END");
+    }
+
+    // Before v6 there is no search: nothing is dropped.
+    private void dropTimelineSearch(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS " + TABLE_TIMELINE_SEARCH + "_ai");
+        db.execSQL("DROP TRIGGER IF EXISTS " + TABLE_TIMELINE_SEARCH + "_bd");
+        db.execSQL("DROP TRIGGER IF EXISTS " + TABLE_TIMELINE_SEARCH + "_bu");
+        db.execSQL("DROP TRIGGER IF EXISTS " + TABLE_TIMELINE_SEARCH + "_au");
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_TIMELINE_SEARCH);
+    }
+
+    // max(timestamp) and newest-first scans use the first;
+    // per-handle, time ordered queries use the second.
+    private void createTimelineIndices(SQLiteDatabase db) {
+        db.execSQL(
+            "CREATE INDEX " + IDX_TIMELINE_TIMESTAMP
+                + " ON " + TABLE_TIMELINE + "(" + COL_TIMESTAMP + ")");
+        db.execSQL(
+            "CREATE INDEX " + IDX_TIMELINE_USER
+                + " ON " + TABLE_TIMELINE + "(" + COL_USER_ID + "," + COL_TIMESTAMP + ")");
     }
 }
@@ -1,26 +1,65 @@
 package com.twitter.university.android.yamba.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.util.Log;
+import android.util.LruCache;
 
+import com.twitter.university.android.yamba.service.R;
 import com.twitter.university.android.yamba.service.YambaContract;
+import com.twitter.university.android.yamba.service.YambaMetrics;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class YambaProvider extends ContentProvider {
     private static final String TAG = "PROVIDER";
 
+    private static final long PRUNE_INTERVAL = 10 * 60 * 1000;
+    private static final long PRUNE_KEEP_ALIVE_SECS = 30;
+    private static final long DAY = 24 * 60 * 60 * 1000;
+    private static final long NOTIFY_WINDOW = 500;
+    private static final int TIMELINE_CACHE_MAX_CHARS = 64 * 1024;
+    private static final int SNAPSHOT_BUF_SIZE = 64 * 1024;
+    static final int IMPORT_TRANSACTION_ROWS = 2000;
+    private static final int USER_MAP_SIZE = 4096;
+
     private static final int MAX_TIMELINE_ITEM_TYPE = 1;
     private static final int TIMELINE_ITEM_TYPE = 2;
     private static final int TIMELINE_DIR_TYPE = 3;
+    private static final int OUTBOX_ITEM_TYPE = 4;
+    private static final int OUTBOX_DIR_TYPE = 5;
+    private static final int SEARCH_DIR_TYPE = 6;
+    private static final int METRICS_DIR_TYPE = 7;
+    private static final int SNAPSHOT_TYPE = 8;
 
     //  scheme                     authority                   path  [id]
     // content://com.twitter.university.android.yamba.timeline/timeline/7
@@ -38,9 +77,241 @@ public class YambaProvider extends ContentProvider {
             YambaContract.AUTHORITY,
             YambaContract.Timeline.TABLE,
             TIMELINE_DIR_TYPE);
+        MATCHER.addURI(
+            YambaContract.AUTHORITY,
+            YambaContract.Outbox.TABLE + "/#",
+            OUTBOX_ITEM_TYPE);
+        MATCHER.addURI(
+            YambaContract.AUTHORITY,
+            YambaContract.Outbox.TABLE,
+            OUTBOX_DIR_TYPE);
+        MATCHER.addURI(
+            YambaContract.AUTHORITY,
+            YambaContract.Search.TABLE,
+            SEARCH_DIR_TYPE);
+        MATCHER.addURI(
+            YambaContract.AUTHORITY,
+            YambaContract.Metrics.TABLE,
+            METRICS_DIR_TYPE);
+        MATCHER.addURI(
+            YambaContract.AUTHORITY,
+            YambaContract.Snapshot.TABLE,
+            SNAPSHOT_TYPE);
     }
 
-    private static final ColumnMap COL_MAP_TIMELINE = new ColumnMap.Builder()
+    private static final Map<String, String> PROJ_MAP_TIMELINE = new ProjectionMap.Builder()
+        .addColumn(YambaContract.Timeline.Columns.ID, YambaDbHelper.COL_ID)
+        .addColumn(YambaContract.Timeline.Columns.TIMESTAMP, YambaDbHelper.COL_TIMESTAMP)
+        .addColumn(
+            YambaContract.Timeline.Columns.HANDLE,
+            YambaDbHelper.TABLE_USERS,
+            YambaDbHelper.COL_HANDLE)
+        .addColumn(YambaContract.Timeline.Columns.TWEET, YambaDbHelper.COL_TWEET)
+        .build()
+        .getProjectionMap();
+
+    private static final Map<String, String> PROJ_MAP_SEARCH = new ProjectionMap.Builder()
+        .addColumn(
+            YambaContract.Timeline.Columns.ID,
+            YambaDbHelper.TABLE_TIMELINE,
+            YambaDbHelper.COL_ID)
+        .addColumn(
+            YambaContract.Timeline.Columns.TIMESTAMP,
+            YambaDbHelper.TABLE_TIMELINE,
+            YambaDbHelper.COL_TIMESTAMP)
+        .addColumn(
+            YambaContract.Timeline.Columns.HANDLE,
+            YambaDbHelper.TABLE_USERS,
+            YambaDbHelper.COL_HANDLE)
+        .addColumn(
+            YambaContract.Timeline.Columns.TWEET,
+            YambaDbHelper.TABLE_TIMELINE,
+            YambaDbHelper.COL_TWEET)
+        .build()
+        .getProjectionMap();
+
+    private static final String TABLES_SEARCH
+        = YambaDbHelper.TABLE_TIMELINE_SEARCH + " JOIN " + YambaDbHelper.TABLE_TIMELINE
+            + " ON (" + YambaDbHelper.TABLE_TIMELINE + "." + YambaDbHelper.COL_ID
+            + "=" + YambaDbHelper.TABLE_TIMELINE_SEARCH + "." + YambaDbHelper.COL_DOCID + ")"
+            + " JOIN " + YambaDbHelper.TABLE_USERS
+            + " ON (" + YambaDbHelper.TABLE_USERS + "." + YambaDbHelper.COL_USER_ID
+            + "=" + YambaDbHelper.TABLE_TIMELINE + "." + YambaDbHelper.COL_USER_ID + ")";
+    private static final String WHERE_SEARCH
+        = YambaDbHelper.TABLE_TIMELINE_SEARCH + " MATCH ?";
+    // offsets() is a list of four numbers, separated by spaces, for each
+    // match: the rank is the number of matches, and then the newest.
+    private static final String OFFSETS_SEARCH = "offsets(" + YambaDbHelper.TABLE_TIMELINE_SEARCH + ")";
+    private static final String SORT_SEARCH
+        = "(length(" + OFFSETS_SEARCH + ")-length(replace(" + OFFSETS_SEARCH + ",' ',''))+1)/4 DESC,"
+            + YambaDbHelper.TABLE_TIMELINE + "." + YambaDbHelper.COL_TIMESTAMP + " DESC";
+
+    private static final ColumnMap COL_MAP_OUTBOX = new ColumnMap.Builder()
+        .addColumn(
+                YambaContract.Outbox.Columns.ID,
+                YambaDbHelper.COL_ID,
+                ColumnMap.Type.LONG)
+        .addColumn(
+                YambaContract.Outbox.Columns.TWEET,
+                YambaDbHelper.COL_TWEET,
+                ColumnMap.Type.STRING)
+        .addColumn(
+                YambaContract.Outbox.Columns.CREATED,
+                YambaDbHelper.COL_CREATED,
+                ColumnMap.Type.LONG)
+        .addColumn(
+                YambaContract.Outbox.Columns.ATTEMPTS,
+                YambaDbHelper.COL_ATTEMPTS,
+                ColumnMap.Type.INTEGER)
+        .addColumn(
+                YambaContract.Outbox.Columns.NEXT_ATTEMPT,
+                YambaDbHelper.COL_NEXT_ATTEMPT,
+                ColumnMap.Type.LONG)
+        .build();
+
+    private static final Map<String, String> PROJ_MAP_OUTBOX = new ProjectionMap.Builder()
+        .addColumn(YambaContract.Outbox.Columns.ID, YambaDbHelper.COL_ID)
+        .addColumn(YambaContract.Outbox.Columns.TWEET, YambaDbHelper.COL_TWEET)
+        .addColumn(YambaContract.Outbox.Columns.CREATED, YambaDbHelper.COL_CREATED)
+        .addColumn(YambaContract.Outbox.Columns.ATTEMPTS, YambaDbHelper.COL_ATTEMPTS)
+        .addColumn(YambaContract.Outbox.Columns.NEXT_ATTEMPT, YambaDbHelper.COL_NEXT_ATTEMPT)
+        .build()
+        .getProjectionMap();
+
+    // Keyset paging: newest first, both in the timestamp index.
+    // The redundant first term lets SQLite seek the index.
+    private static final String SORT_TIMELINE_PAGE
+        = YambaDbHelper.COL_TIMESTAMP + " DESC," + YambaDbHelper.COL_ID + " DESC";
+    private static final String WHERE_TIMELINE_BEFORE
+        = YambaDbHelper.COL_TIMESTAMP + "<=? AND ("
+            + YambaDbHelper.COL_TIMESTAMP + "<? OR " + YambaDbHelper.COL_ID + "<?)";
+
+    private static final String WHERE_TIMELINE_SINCE = YambaDbHelper.COL_ID + ">?";
+    private static final String WHERE_PK = YambaDbHelper.COL_ID + "=?";
+
+    // Client selections for updates and deletes name the contract's
+    // columns, as those for queries do: they select the target rows'
+    // ids from the query's projection of the table.
+    private static final String SEL_TIMELINE_ROWS
+        = buildRowSelection(
+            YambaDbHelper.JOIN_TIMELINE_USERS,
+            PROJ_MAP_TIMELINE,
+            YambaContract.Timeline.Columns.ID);
+    private static final String SEL_OUTBOX_ROWS
+        = buildRowSelection(
+            YambaDbHelper.TABLE_OUTBOX,
+            PROJ_MAP_OUTBOX,
+            YambaContract.Outbox.Columns.ID);
+
+    private static final int QUERY_CACHE_SIZE = 32;
+
+    // The client selections and sorts the timeline cache can answer
+    private static final String SEL_HANDLE = YambaContract.Timeline.Columns.HANDLE + "=?";
+    private static final String SORT_TIMELINE_NEWEST
+        = YambaContract.Timeline.Columns.TIMESTAMP + " DESC";
+    private static final String SORT_TIMELINE_NEWEST_FIRST
+        = YambaContract.Timeline.Columns.TIMESTAMP + " DESC,"
+            + YambaContract.Timeline.Columns.ID + " DESC";
+
+    private static final String[] COLS_MAX_TIMELINE = new String[] {
+        YambaContract.MaxTimeline.Columns.TIMESTAMP,
+        YambaContract.MaxTimeline.Columns.ID
+    };
+
+    private static final String[] COLS_METRICS = new String[] {
+        YambaContract.Metrics.Columns.NAME,
+        YambaContract.Metrics.Columns.COUNT,
+        YambaContract.Metrics.Columns.TOTAL,
+        YambaContract.Metrics.Columns.MAX,
+        YambaContract.Metrics.Columns.P50,
+        YambaContract.Metrics.Columns.P90,
+        YambaContract.Metrics.Columns.P99
+    };
+
+    // The changes made by a write: published once it commits.
+    // A batch accumulates the changes made by all of its operations.
+    private static final class Changes {
+        HighWaterMark mark;
+        boolean timeline;
+        boolean outbox;
+
+        void advance(HighWaterMark m) {
+            mark = (null == mark) ? m : mark.max(m);
+        }
+    }
+
+    // The rows written by timeline inserts.  The values of the rows
+    // are kept, up to the capacity of the arrays, for the cache.
+    private static final class InsertedRows {
+        final long[] ids;
+        final long[] timestamps;
+        final String[] handles;
+        final String[] tweets;
+        int count;
+        long maxTimestamp = Long.MIN_VALUE;
+        long maxId = Long.MIN_VALUE;
+        long minId = Long.MAX_VALUE;
+
+        InsertedRows(int capacity) {
+            ids = new long[capacity];
+            timestamps = new long[capacity];
+            handles = new String[capacity];
+            tweets = new String[capacity];
+        }
+
+        // an updated row may not have a timestamp
+        void add(long id, ContentValues row) {
+            Object val = row.get(YambaContract.Timeline.Columns.TIMESTAMP);
+            long ts = (null == val) ? Long.MIN_VALUE : ColumnMap.Type.asLong(val);
+            if (count < ids.length) {
+                ids[count] = id;
+                timestamps[count] = ts;
+                handles[count] = row.getAsString(YambaContract.Timeline.Columns.HANDLE);
+                tweets[count] = row.getAsString(YambaContract.Timeline.Columns.TWEET);
+            }
+            count++;
+            minId = Math.min(minId, id);
+            maxId = Math.max(maxId, id);
+            maxTimestamp = Math.max(maxTimestamp, ts);
+        }
+
+        HighWaterMark getMark() { return new HighWaterMark(maxTimestamp, maxId); }
+    }
+
+    private static final String QUERY_MAX_TIMELINE
+        = "SELECT max(" + YambaDbHelper.COL_TIMESTAMP + "), max(" + YambaDbHelper.COL_ID + ")"
+            + " FROM " + YambaDbHelper.TABLE_TIMELINE;
+
+    // null until loaded, on first use.  Once loaded, only ever advanced.
+    private final AtomicReference<HighWaterMark> highWaterMark
+        = new AtomicReference<HighWaterMark>();
+
+    private final AtomicLong lastPrune = new AtomicLong();
+
+    // Prunes run here, one at a time, in the background:
+    // the write that triggers one does not wait for it.
+    private final ThreadPoolExecutor pruneLane = new ThreadPoolExecutor(
+        1,
+        1,
+        PRUNE_KEEP_ALIVE_SECS,
+        TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread("prune") {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                };
+            }
+        });
+
+    // A handle is written as its user id: the writer adds any new
+    // handle to the users table.  Clients cannot write the id.
+    private final ColumnMap colMapTimeline = new ColumnMap.Builder()
         .addColumn(
                 YambaContract.Timeline.Columns.ID,
                 YambaDbHelper.COL_ID,
@@ -51,38 +322,53 @@ public class YambaProvider extends ContentProvider {
                 ColumnMap.Type.LONG)
         .addColumn(
                 YambaContract.Timeline.Columns.HANDLE,
-                YambaDbHelper.COL_HANDLE,
-                ColumnMap.Type.STRING)
+                YambaDbHelper.COL_USER_ID,
+                new ColumnMap.KeyEncoder() {
+                    @Override
+                    public long encode(Object handle) { return users.getId(getDb(), handle.toString()); }
+                })
         .addColumn(
                 YambaContract.Timeline.Columns.TWEET,
                 YambaDbHelper.COL_TWEET,
                 ColumnMap.Type.STRING)
         .build();
 
-    private static final Map<String, String> PROJ_MAP_TIMELINE = new ProjectionMap.Builder()
-        .addColumn(YambaContract.Timeline.Columns.ID, YambaDbHelper.COL_ID)
-        .addColumn(YambaContract.Timeline.Columns.TIMESTAMP, YambaDbHelper.COL_TIMESTAMP)
-        .addColumn(YambaContract.Timeline.Columns.HANDLE, YambaDbHelper.COL_HANDLE)
-        .addColumn(YambaContract.Timeline.Columns.TWEET, YambaDbHelper.COL_TWEET)
-        .build()
-        .getProjectionMap();
+    // set while the calling thread is applying a batch
+    private final ThreadLocal<Changes> batch = new ThreadLocal<Changes>();
 
-    private static final Map<String, String> PROJ_MAP_MAX_TIMELINE = new ProjectionMap.Builder()
-        .addColumn(
-            YambaContract.MaxTimeline.Columns.TIMESTAMP,
-            "max(" + YambaDbHelper.COL_TIMESTAMP + ")")
-        .build()
-        .getProjectionMap();
+    // SQL for recent query shapes.  The db caches the compiled
+    // statement for each, as long as its text is identical.
+    private final LruCache<QueryShape, String> queryCache
+        = new LruCache<QueryShape, String>(QUERY_CACHE_SIZE);
 
     private YambaDbHelper dbHelper;
+    private TimelinePruner pruner;
+    private TimelineNotifier notifier;
+    private TimelineCache timelineCache;
+    private UserMap users;
 
     @Override
     public boolean onCreate() {
         Log.d(TAG, "provider created");
+        Resources rez = getContext().getResources();
+        pruner = new TimelinePruner(
+            rez.getInteger(R.integer.retention_max_rows),
+            rez.getInteger(R.integer.retention_max_age_days) * DAY,
+            rez.getInteger(R.integer.retention_max_per_handle));
+        notifier = new TimelineNotifier(getContext().getContentResolver(), NOTIFY_WINDOW);
+        timelineCache = new TimelineCache(
+            rez.getInteger(R.integer.timeline_cache_rows),
+            TIMELINE_CACHE_MAX_CHARS);
+        users = new UserMap(USER_MAP_SIZE);
+        pruneLane.allowCoreThreadTimeOut(true);
         dbHelper = new YambaDbHelper(getContext());
         return null != dbHelper;
     }
 
+    // The timeline's column map, for benchmarks.  A handle that is
+    // not yet cached is added through the provider's own db.
+    ColumnMap getTimelineColumnMap() { return colMapTimeline; }
+
     @Override
     public String getType(Uri uri) {
         switch (MATCHER.match(uri)) {
@@ -92,39 +378,106 @@ public class YambaProvider extends ContentProvider {
                 return YambaContract.Timeline.ITEM_TYPE;
             case TIMELINE_DIR_TYPE:
                 return YambaContract.Timeline.DIR_TYPE;
+            case OUTBOX_ITEM_TYPE:
+                return YambaContract.Outbox.ITEM_TYPE;
+            case OUTBOX_DIR_TYPE:
+                return YambaContract.Outbox.DIR_TYPE;
+            case SEARCH_DIR_TYPE:
+                return YambaContract.Search.DIR_TYPE;
+            case METRICS_DIR_TYPE:
+                return YambaContract.Metrics.DIR_TYPE;
+            case SNAPSHOT_TYPE:
+                return YambaContract.Snapshot.TYPE;
             default:
                 return null;
         }
     }
 
-    @SuppressWarnings("fallthrough")
     @Override
     public Cursor query(Uri uri, String[] proj, String sel, String[] selArgs, String sort) {
         Log.d(TAG, "query");
 
+        long t = System.nanoTime();
+        int match = MATCHER.match(uri);
+        Cursor c = query(match, uri, proj, sel, selArgs, sort);
+
+        // An SQLite cursor runs its query on first use:
+        // run it here, so that the time spent is measured.
+        c.getCount();
+        getQueryTimer(match).recordSince(t);
+
+        return c;
+    }
+
+    @SuppressWarnings("fallthrough")
+    private Cursor query(
+        int match,
+        Uri uri,
+        String[] proj,
+        String sel,
+        String[] selArgs,
+        String sort)
+    {
         long pk = -1;
-        Map<String, String> projMap;
-        switch (MATCHER.match(uri)) {
+        switch (match) {
             case MAX_TIMELINE_ITEM_TYPE:
-                projMap = PROJ_MAP_MAX_TIMELINE;
-                break;
+                return queryMaxTimeline(uri, proj);
+            case SEARCH_DIR_TYPE:
+                return querySearch(uri, proj, sel, selArgs);
+            case METRICS_DIR_TYPE:
+                return queryMetrics(proj);
             case TIMELINE_ITEM_TYPE:
+            case OUTBOX_ITEM_TYPE:
                 pk = ContentUris.parseId(uri);
             case TIMELINE_DIR_TYPE:
-                projMap = PROJ_MAP_TIMELINE;
+            case OUTBOX_DIR_TYPE:
                 break;
             default:
                 throw new IllegalArgumentException("Unexpected uri: " + uri);
         }
 
-        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-        qb.setTables(YambaDbHelper.TABLE_TIMELINE);
+        // the args for the provider's clauses precede the client's, in WHERE_ order
+        int where = 0;
+        String[] whereArgs = null;
+        if (0 < pk) {
+            where |= QueryShape.WHERE_PK;
+            whereArgs = new String[] { String.valueOf(pk) };
+        }
 
-        qb.setProjectionMap(projMap);
+        String limit = null;
+        if (TIMELINE_DIR_TYPE == match) {
+            limit = uri.getQueryParameter(YambaContract.Timeline.PARAM_LIMIT);
+            String before = uri.getQueryParameter(YambaContract.Timeline.PARAM_BEFORE);
+            // with no sort, too: the cache serves it newest first
+            if ((null != limit) || (null != before) || (null == sort)) {
+                sort = SORT_TIMELINE_PAGE;
+                if (null != limit) { limit = String.valueOf(parseLong(limit)); }
+            }
+            if (null != before) {
+                where |= QueryShape.WHERE_BEFORE;
+                whereArgs = parseBefore(before);
+            }
+            String since = uri.getQueryParameter(YambaContract.Timeline.PARAM_SINCE);
+            if (null != since) {
+                where |= QueryShape.WHERE_SINCE;
+                String[] sinceArgs = new String[] { String.valueOf(parseLong(since)) };
+                whereArgs = (null == whereArgs) ? sinceArgs : prependArgs(whereArgs, sinceArgs);
+            }
+        }
+
+        // a query in a batch must see the batch's uncommitted writes
+        if ((TIMELINE_DIR_TYPE == match) && (0 == where) && (null == batch.get())) {
+            Cursor c = queryTimelineCache(proj, sel, selArgs, sort, limit);
+            if (null != c) {
+                c.setNotificationUri(getContext().getContentResolver(), uri);
+                return c;
+            }
+        }
 
-        if (0 < pk) { qb.appendWhere(YambaDbHelper.COL_ID + "=" + pk); }
+        if (null != whereArgs) { selArgs = prependArgs(whereArgs, selArgs); }
 
-        Cursor c = qb.query(getDb(), proj, sel, selArgs, null, null, sort);
+        String sql = getQuery(new QueryShape(match, proj, sel, sort, limit, where));
+        Cursor c = getReadDb().rawQuery(sql, selArgs);
 
         c.setNotificationUri(getContext().getContentResolver(), uri);
 
@@ -144,47 +497,887 @@ public class YambaProvider extends ContentProvider {
                 throw new IllegalArgumentException("Unexpected uri: " + uri);
         }
 
-        int count = 0;
+        BatchInserter.Conflict conflict = getConflict(uri);
 
-        SQLiteDatabase db = getDb();
+        // notifications are relative to the mark before this write
+        HighWaterMark hwm = getHighWaterMark();
+
+        InsertedRows inserted = new InsertedRows(rows.length);
+        long t = System.nanoTime();
+        boolean committed = false;
+        SQLiteDatabase db = beginWrite();
         try {
-            db.beginTransaction();
-            for (ContentValues row: rows) {
-                if (0 < db.insert(
-                        table,
-                        null,
-                        COL_MAP_TIMELINE.translateCols(row)))
-                {
-                    count++;
-                }
-            }
+            insertRows(db, table, rows, rows.length, conflict, inserted);
             db.setTransactionSuccessful();
+            committed = true;
         }
         finally {
-            db.endTransaction();
+            endWrite(db, committed);
+            YambaMetrics.Timer.BULK_INSERT.recordSince(t);
         }
 
+        int count = inserted.count;
         if (0 < count) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            // an update or replace may change a cached row
+            if (BatchInserter.Conflict.IGNORE == conflict) {
+                timelineCache.onInserted(
+                    inserted.ids,
+                    inserted.timestamps,
+                    inserted.handles,
+                    inserted.tweets,
+                    count);
+            }
+            else {
+                timelineCache.invalidate();
+            }
+            advanceHighWaterMark(inserted.getMark());
+            // only new rows, newer than any already there, get a hint
+            if (!hwm.isEmpty() && (inserted.minId > hwm.getId())) {
+                notifier.notifyInserted(hwm.getId(), inserted.maxId);
+            }
+            else {
+                notifier.notifyChanged();
+            }
+            maybePrune();
         }
 
         return count;
     }
 
+    /**
+     * All of the operations run in a single transaction, and cause
+     * a single notification, after it commits.  An operation that
+     * allows a yield may commit the operations before it, early,
+     * to let another writer in.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops)
+        throws OperationApplicationException
+    {
+        Log.d(TAG, "batch: " + ops.size());
+
+        Changes changes = new Changes();
+        boolean committed = false;
+        SQLiteDatabase db = beginWrite();
+        batch.set(changes);
+        try {
+            try {
+                int n = ops.size();
+                ContentProviderResult[] results = new ContentProviderResult[n];
+                for (int i = 0; i < n; i++) {
+                    ContentProviderOperation op = ops.get(i);
+                    if ((0 < i) && op.isYieldAllowed()) { db.yieldIfContendedSafely(); }
+                    results[i] = op.apply(this, results, i);
+                }
+                db.setTransactionSuccessful();
+                committed = true;
+                return results;
+            }
+            finally {
+                endWrite(db, committed);
+            }
+        }
+        finally {
+            batch.remove();
+            // a yield may have committed part of a failed batch
+            publishChanges(changes, committed);
+        }
+    }
+
     @Override
-    public Uri insert(Uri arg0, ContentValues arg1) {
-        throw new UnsupportedOperationException("insert not supported");
+    public Uri insert(Uri uri, ContentValues vals) {
+        Log.d(TAG, "insert");
+
+        switch (MATCHER.match(uri)) {
+            case TIMELINE_DIR_TYPE:
+                return insertTimeline(uri, vals);
+            case OUTBOX_DIR_TYPE:
+                break;
+            default:
+                throw new UnsupportedOperationException("insert not supported: " + uri);
+        }
+
+        long id = getDb().insert(YambaDbHelper.TABLE_OUTBOX, null, COL_MAP_OUTBOX.translateCols(vals));
+        if (0 >= id) { return null; }
+
+        Changes changes = beginChanges();
+        changes.outbox = true;
+        endChanges(changes);
+
+        return ContentUris.withAppendedId(uri, id);
     }
 
+    @SuppressWarnings("fallthrough")
     @Override
-    public int update(Uri arg0, ContentValues arg1, String arg2, String[] arg3) {
-        throw new UnsupportedOperationException("update not supported");
+    public int update(Uri uri, ContentValues vals, String sel, String[] selArgs) {
+        Log.d(TAG, "update");
+
+        long pk = -1;
+        int match = MATCHER.match(uri);
+        switch (match) {
+            case TIMELINE_ITEM_TYPE:
+            case OUTBOX_ITEM_TYPE:
+                pk = ContentUris.parseId(uri);
+            case TIMELINE_DIR_TYPE:
+            case OUTBOX_DIR_TYPE:
+                break;
+            default:
+                throw new UnsupportedOperationException("update not supported: " + uri);
+        }
+
+        boolean timeline = isTimeline(match);
+        sel = addPkToSelection(pk, translateSelection(timeline, sel));
+        selArgs = addPkToSelectionArgs(pk, selArgs);
+
+        int n = (timeline)
+            ? updateTimeline(vals, sel, selArgs)
+            : getDb().update(YambaDbHelper.TABLE_OUTBOX, COL_MAP_OUTBOX.translateCols(vals), sel, selArgs);
+        if (0 >= n) { return n; }
+
+        Changes changes = beginChanges();
+        if (!timeline) { changes.outbox = true; }
+        else {
+            changes.timeline = true;
+            HighWaterMark mark = getMark(vals, Long.MIN_VALUE);
+            if (null != mark) { changes.advance(mark); }
+        }
+        endChanges(changes);
+
+        return n;
     }
 
+    // Deleting rows leaves the high-water mark as it is:
+    // it is an upper bound, and deleted rows are not fetched again.
+    @SuppressWarnings("fallthrough")
     @Override
-    public int delete(Uri arg0, String arg1, String[] arg2) {
-        throw new UnsupportedOperationException("delete not supported");
+    public int delete(Uri uri, String sel, String[] selArgs) {
+        Log.d(TAG, "delete");
+
+        long pk = -1;
+        int match = MATCHER.match(uri);
+        switch (match) {
+            case TIMELINE_ITEM_TYPE:
+            case OUTBOX_ITEM_TYPE:
+                pk = ContentUris.parseId(uri);
+            case TIMELINE_DIR_TYPE:
+            case OUTBOX_DIR_TYPE:
+                break;
+            default:
+                throw new UnsupportedOperationException("delete not supported: " + uri);
+        }
+
+        boolean timeline = isTimeline(match);
+
+        int n = getDb().delete(
+            (timeline) ? YambaDbHelper.TABLE_TIMELINE : YambaDbHelper.TABLE_OUTBOX,
+            addPkToSelection(pk, translateSelection(timeline, sel)),
+            addPkToSelectionArgs(pk, selArgs));
+        if (0 >= n) { return n; }
+
+        Changes changes = beginChanges();
+        if (timeline) { changes.timeline = true; }
+        else { changes.outbox = true; }
+        endChanges(changes);
+
+        return n;
+    }
+
+    /**
+     * The snapshot uri, only.  Read ("r"): a pipe from which
+     * a snapshot of the timeline can be read.  Write ("w"): a pipe
+     * to which a snapshot can be written: its rows are imported.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        Log.d(TAG, "open: " + mode);
+
+        switch (MATCHER.match(uri)) {
+            case SNAPSHOT_TYPE:
+                break;
+            default:
+                throw new FileNotFoundException("Unexpected uri: " + uri);
+        }
+
+        if ("r".equals(mode)) {
+            return openSnapshotExport();
+        }
+        if ((0 <= mode.indexOf('w')) && (0 > mode.indexOf('r'))) {
+            return openSnapshotImport(getConflict(uri));
+        }
+        throw new FileNotFoundException("Unsupported mode: " + mode);
+    }
+
+    // Same conflict policies as bulkInsert
+    private Uri insertTimeline(Uri uri, ContentValues vals) {
+        BatchInserter.Conflict conflict = getConflict(uri);
+
+        // a new handle is a second insert: both commit, or neither
+        InsertedRows inserted = new InsertedRows(0);
+        boolean committed = false;
+        SQLiteDatabase db = beginWrite();
+        try {
+            insertRows(db, YambaDbHelper.TABLE_TIMELINE, new ContentValues[] { vals }, 1, conflict, inserted);
+            db.setTransactionSuccessful();
+            committed = true;
+        }
+        finally {
+            endWrite(db, committed);
+        }
+        if (0 >= inserted.count) { return null; }
+
+        Changes changes = beginChanges();
+        changes.timeline = true;
+        changes.advance(inserted.getMark());
+        endChanges(changes);
+
+        return ContentUris.withAppendedId(YambaContract.Timeline.URI, inserted.maxId);
+    }
+
+    private int updateTimeline(ContentValues vals, String sel, String[] selArgs) {
+        int n;
+        boolean committed = false;
+        SQLiteDatabase db = beginWrite();
+        try {
+            n = db.update(
+                YambaDbHelper.TABLE_TIMELINE,
+                colMapTimeline.translateCols(vals),
+                sel,
+                selArgs);
+            db.setTransactionSuccessful();
+            committed = true;
+        }
+        finally {
+            endWrite(db, committed);
+        }
+        return n;
+    }
+
+    // The client gets the read end of the pipe: the export
+    // writes the other, on a thread of its own.
+    private ParcelFileDescriptor openSnapshotExport() throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe = createSnapshotPipe();
+
+        new Thread("snapshot-export") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                exportSnapshot(pipe[1]);
+            }
+        }.start();
+
+        return pipe[0];
+    }
+
+    // A failure, including the reader closing the pipe early,
+    // ends the export, and closes the pipe with an error.
+    private void exportSnapshot(ParcelFileDescriptor fd) {
+        long t = System.nanoTime();
+        OutputStream out = new BufferedOutputStream(
+            new ParcelFileDescriptor.AutoCloseOutputStream(fd),
+            SNAPSHOT_BUF_SIZE);
+        String err = null;
+        try { Log.d(TAG, "exported: " + TimelineSnapshot.export(getReadDb(), out)); }
+        // IOException, or any failure in the db
+        catch (Exception e) {
+            Log.w(TAG, "export failed", e);
+            err = e.toString();
+        }
+        finally {
+            if (null == err) { closeQuietly(out); }
+            else { closeWithError(fd, err); }
+            YambaMetrics.Timer.SNAPSHOT_EXPORT.recordSince(t);
+        }
     }
 
+    // The client gets the write end of the pipe: the import
+    // reads the other, on a thread of its own.
+    private ParcelFileDescriptor openSnapshotImport(final BatchInserter.Conflict conflict)
+        throws FileNotFoundException
+    {
+        final ParcelFileDescriptor[] pipe = createSnapshotPipe();
+
+        new Thread("snapshot-import") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                importSnapshot(pipe[0], conflict);
+            }
+        }.start();
+
+        return pipe[1];
+    }
+
+    // A reliable pipe, where there is one, can carry an error to the client
+    private static ParcelFileDescriptor[] createSnapshotPipe() throws FileNotFoundException {
+        try {
+            return (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+                ? ParcelFileDescriptor.createReliablePipe()
+                : ParcelFileDescriptor.createPipe();
+        }
+        catch (IOException e) { throw new FileNotFoundException("Failed to create pipe: " + e); }
+    }
+
+    private static void closeWithError(ParcelFileDescriptor fd, String err) {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) { fd.closeWithError(err); }
+            else { fd.close(); }
+        }
+        catch (IOException e) { Log.w(TAG, "close failed", e); }
+    }
+
+    // Compiled inserts, in large transactions: one commit for
+    // every IMPORT_TRANSACTION_ROWS rows.  Each chunk is read
+    // before its transaction begins: a slow writer does not hold
+    // up other writes.  Each committed chunk is published, as it
+    // commits: readers and observers see a long import progress.
+    // A malformed or truncated snapshot loses only the chunk in
+    // which it fails, and closes the pipe with an error.
+    private void importSnapshot(ParcelFileDescriptor fd, BatchInserter.Conflict conflict) {
+        long t = System.nanoTime();
+        InputStream in = new BufferedInputStream(
+            new ParcelFileDescriptor.AutoCloseInputStream(fd),
+            SNAPSHOT_BUF_SIZE);
+
+        InsertedRows inserted = new InsertedRows(0);
+        String err = null;
+        try {
+            TimelineSnapshot.Reader reader = new TimelineSnapshot.Reader(in);
+            ContentValues[] rows = new ContentValues[IMPORT_TRANSACTION_ROWS];
+            boolean more = true;
+            while (more) {
+                int n = 0;
+                for (; n < rows.length; n++) {
+                    if (null == rows[n]) { rows[n] = new ContentValues(); }
+                    if (!reader.read(rows[n])) {
+                        more = false;
+                        break;
+                    }
+                }
+                if (0 >= n) { break; }
+
+                int count = inserted.count;
+                boolean committed = false;
+                SQLiteDatabase db = beginWrite();
+                try {
+                    insertRows(db, YambaDbHelper.TABLE_TIMELINE, rows, n, conflict, inserted);
+                    db.setTransactionSuccessful();
+                    committed = true;
+                }
+                finally {
+                    endWrite(db, committed);
+                }
+
+                if (count < inserted.count) {
+                    Changes changes = new Changes();
+                    changes.timeline = true;
+                    changes.advance(inserted.getMark());
+                    publishChanges(changes, true);
+                }
+            }
+        }
+        // IOException, or any failure in the db
+        catch (Exception e) {
+            Log.w(TAG, "import failed", e);
+            YambaMetrics.Counter.SNAPSHOT_IMPORT_FAILURES.increment();
+            err = e.toString();
+        }
+        finally {
+            if (null == err) { closeQuietly(in); }
+            else { closeWithError(fd, err); }
+            YambaMetrics.Timer.SNAPSHOT_IMPORT.recordSince(t);
+        }
+
+        Log.d(TAG, "imported: " + inserted.count);
+    }
+
+    // Inserts the first n rows, through a single compiled statement,
+    // and records those written.  Must be called within a write.
+    private void insertRows(
+        SQLiteDatabase db,
+        String table,
+        ContentValues[] rows,
+        int n,
+        BatchInserter.Conflict conflict,
+        InsertedRows inserted)
+    {
+        BatchInserter inserter = new BatchInserter(
+            db,
+            table,
+            colMapTimeline,
+            YambaDbHelper.COL_ID,
+            conflict);
+        try {
+            for (int i = 0; i < n; i++) {
+                long id = inserter.insert(rows[i]);
+                if (0 < id) { inserted.add(id, rows[i]); }
+            }
+        }
+        finally {
+            inserter.close();
+        }
+
+        Log.d(TAG, "inserted: " + inserter.getInserted() + ", updated: " + inserter.getUpdated());
+        YambaMetrics.Counter.ROWS_INSERTED.add(inserter.getInserted());
+        YambaMetrics.Counter.ROWS_UPDATED.add(inserter.getUpdated());
+    }
+
+    // Every timeline write is a transaction begun here.
+    // The mark must be loaded before the write commits.
+    private SQLiteDatabase beginWrite() {
+        getHighWaterMark();
+        SQLiteDatabase db = getDb();
+        db.beginTransactionNonExclusive();
+        return db;
+    }
+
+    // A failed write may have rolled back new users: their cached
+    // ids must go before the transaction ends, and lets in the next
+    // writer.  A failed nested write clears them, too: the outer
+    // transaction will fail.
+    private void endWrite(SQLiteDatabase db, boolean committed) {
+        if (!committed) { users.clear(); }
+        db.endTransaction();
+    }
+
+    private static void closeQuietly(Closeable stream) {
+        try { stream.close(); }
+        catch (IOException e) { Log.w(TAG, "close failed", e); }
+    }
+
+    // The changes for a write: if in a batch, those of the batch
+    private Changes beginChanges() {
+        Changes changes = batch.get();
+        return (null != changes) ? changes : new Changes();
+    }
+
+    // Publish the changes, unless the batch will publish them
+    private void endChanges(Changes changes) {
+        if (null == batch.get()) { publishChanges(changes, true); }
+    }
+
+    // Anything other than a bulk insert simply drops the cache.
+    // The mark only advances for committed writes.
+    private void publishChanges(Changes changes, boolean committed) {
+        if (committed && (null != changes.mark)) { advanceHighWaterMark(changes.mark); }
+        if (changes.timeline) {
+            timelineCache.invalidate();
+            notifier.notifyChanged();
+        }
+        if (changes.outbox) {
+            getContext().getContentResolver().notifyChange(YambaContract.Outbox.URI, null);
+        }
+    }
+
+    // The mark for a row written with the given values: null if they
+    // change neither its timestamp nor its id.
+    private static HighWaterMark getMark(ContentValues vals, long id) {
+        Long ts = vals.getAsLong(YambaContract.Timeline.Columns.TIMESTAMP);
+        Long valId = vals.getAsLong(YambaContract.Timeline.Columns.ID);
+        if (null != valId) { id = valId.longValue(); }
+        if ((null == ts) && (Long.MIN_VALUE == id)) { return null; }
+        return new HighWaterMark((null == ts) ? Long.MIN_VALUE : ts.longValue(), id);
+    }
+
+    private static boolean isTimeline(int match) {
+        return (TIMELINE_ITEM_TYPE == match) || (TIMELINE_DIR_TYPE == match);
+    }
+
+    // "<timestamp>,<id>" -> args for WHERE_TIMELINE_BEFORE
+    private static String[] parseBefore(String before) {
+        int sep = before.indexOf(',');
+        if (0 > sep) { throw new IllegalArgumentException("Malformed row key: " + before); }
+        String ts = String.valueOf(parseLong(before.substring(0, sep)));
+        String id = String.valueOf(parseLong(before.substring(sep + 1)));
+        return new String[] { ts, ts, id };
+    }
+
+    private static long parseLong(String val) {
+        try { return Long.parseLong(val.trim()); }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed number: " + val, e);
+        }
+    }
+
+    private static String[] prependArgs(String[] pre, String[] args) {
+        if (null == args) { return pre; }
+        String[] allArgs = new String[pre.length + args.length];
+        System.arraycopy(pre, 0, allArgs, 0, pre.length);
+        System.arraycopy(args, 0, allArgs, pre.length, args.length);
+        return allArgs;
+    }
+
+    // At most one prune, every PRUNE_INTERVAL: the CAS elects the pruner.
+    // The prune itself runs on the prune lane, after the caller's
+    // transaction has committed.
+    private void maybePrune() {
+        long now = System.currentTimeMillis();
+        long last = lastPrune.get();
+        if ((now - last < PRUNE_INTERVAL) || !lastPrune.compareAndSet(last, now)) { return; }
+        pruneLane.execute(new Runnable() {
+            @Override
+            public void run() { prune(); }
+        });
+    }
+
+    // Pruning only removes old rows: the high-water mark is unchanged.
+    // A failed prune is retried, with the next, after PRUNE_INTERVAL.
+    private void prune() {
+        try {
+            if (0 < pruner.prune(getDb()).getRows()) {
+                timelineCache.invalidate();
+                notifier.notifyChanged();
+            }
+        }
+        catch (RuntimeException e) { Log.w(TAG, "prune failed", e); }
+    }
+
+    private static String translateSelection(boolean timeline, String sel) {
+        if (null == sel) { return null; }
+        return ((timeline) ? SEL_TIMELINE_ROWS : SEL_OUTBOX_ROWS) + sel + "))";
+    }
+
+    // "<actual id> IN (SELECT <id> FROM (<projection>) WHERE (":
+    // SQLite flattens the subquery, and uses the table's indices.
+    private static String buildRowSelection(String tables, Map<String, String> projMap, String idCol) {
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(tables);
+        qb.setProjectionMap(projMap);
+        return YambaDbHelper.COL_ID + " IN (SELECT " + idCol
+            + " FROM (" + qb.buildQuery(null, null, null, null, null, null) + ") WHERE (";
+    }
+
+    private static String addPkToSelection(long pk, String sel) {
+        if (0 >= pk) { return sel; }
+        return (null == sel) ? WHERE_PK : WHERE_PK + " AND (" + sel + ")";
+    }
+
+    private static String[] addPkToSelectionArgs(long pk, String[] selArgs) {
+        return (0 >= pk) ? selArgs : prependArgs(new String[] { String.valueOf(pk) }, selArgs);
+    }
+
+    private BatchInserter.Conflict getConflict(Uri uri) {
+        String conflict = uri.getQueryParameter(YambaContract.Timeline.PARAM_CONFLICT);
+        if ((null == conflict) || YambaContract.Timeline.CONFLICT_IGNORE.equals(conflict)) {
+            return BatchInserter.Conflict.IGNORE;
+        }
+        if (YambaContract.Timeline.CONFLICT_REPLACE.equals(conflict)) {
+            return BatchInserter.Conflict.REPLACE;
+        }
+        if (YambaContract.Timeline.CONFLICT_UPDATE.equals(conflict)) {
+            return BatchInserter.Conflict.UPDATE;
+        }
+        throw new IllegalArgumentException("Unexpected conflict policy: " + conflict);
+    }
+
+    private Cursor querySearch(Uri uri, String[] proj, String sel, String[] selArgs) {
+        String match = buildMatch(
+            uri.getQueryParameter(YambaContract.Search.PARAM_QUERY),
+            Boolean.parseBoolean(uri.getQueryParameter(YambaContract.Search.PARAM_HANDLE_ONLY)));
+
+        String limit = uri.getQueryParameter(YambaContract.Search.PARAM_LIMIT);
+        if (null != limit) { limit = String.valueOf(parseLong(limit)); }
+
+        int where = 0;
+        if (null != match) {
+            where = QueryShape.WHERE_MATCH;
+            selArgs = prependArgs(new String[] { match }, selArgs);
+        }
+
+        String sql = getQuery(new QueryShape(SEARCH_DIR_TYPE, proj, sel, SORT_SEARCH, limit, where));
+        Cursor c = getReadDb().rawQuery(sql, selArgs);
+
+        c.setNotificationUri(getContext().getContentResolver(), YambaContract.Timeline.URI);
+
+        return c;
+    }
+
+    // Newest first, all rows or those for one handle: anything
+    // else, or anything the cache does not hold, goes to the db.
+    private Cursor queryTimelineCache(
+        String[] proj,
+        String sel,
+        String[] selArgs,
+        String sort,
+        String limit)
+    {
+        if (!timelineCache.isEnabled()) { return null; }
+
+        String handle = null;
+        if (null != sel) {
+            if (!SEL_HANDLE.equals(sel) || (null == selArgs) || (1 != selArgs.length)) {
+                return null;
+            }
+            handle = selArgs[0];
+        }
+        else if ((null != selArgs) && (0 < selArgs.length)) {
+            return null;
+        }
+
+        if (!(SORT_TIMELINE_PAGE.equals(sort)
+            || SORT_TIMELINE_NEWEST.equals(sort)
+            || SORT_TIMELINE_NEWEST_FIRST.equals(sort)))
+        {
+            return null;
+        }
+
+        Cursor c = timelineCache.query(getReadDb(), proj, handle, (null == limit) ? -1 : parseLong(limit));
+        if (null == c) { YambaMetrics.Counter.TIMELINE_CACHE_MISSES.increment(); }
+        else { YambaMetrics.Counter.TIMELINE_CACHE_HITS.increment(); }
+        return c;
+    }
+
+    // Each word becomes a prefix query: punctuation, which is FTS
+    // query syntax, is dropped.  Returns null if there are no words.
+    private static String buildMatch(String query, boolean handleOnly) {
+        if (null == query) { return null; }
+
+        StringBuilder match = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        int n = query.length();
+        for (int i = 0; i <= n; i++) {
+            char ch = (i < n) ? query.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(ch) || ('_' == ch)) {
+                word.append(ch);
+                continue;
+            }
+            if (0 >= word.length()) { continue; }
+            if (0 < match.length()) { match.append(' '); }
+            if (handleOnly) { match.append(YambaDbHelper.COL_HANDLE).append(':'); }
+            match.append(word).append('*');
+            word.setLength(0);
+        }
+
+        return (0 >= match.length()) ? null : match.toString();
+    }
+
+    private Cursor queryMetrics(String[] proj) {
+        if (null == proj) { proj = COLS_METRICS; }
+
+        YambaMetrics.Counter[] counters = YambaMetrics.Counter.values();
+        YambaMetrics.Timer[] timers = YambaMetrics.Timer.values();
+        MatrixCursor c = new MatrixCursor(proj, counters.length + timers.length);
+
+        for (YambaMetrics.Counter counter: counters) {
+            Object[] row = new Object[proj.length];
+            for (int i = 0; i < proj.length; i++) {
+                String col = proj[i];
+                if (YambaContract.Metrics.Columns.NAME.equals(col)) {
+                    row[i] = counter.getName();
+                }
+                else if (YambaContract.Metrics.Columns.COUNT.equals(col)) {
+                    row[i] = Long.valueOf(counter.get());
+                }
+                else if (!isMetricsColumn(col)) {
+                    throw new IllegalArgumentException("Invalid column: " + col);
+                }
+            }
+            c.addRow(row);
+        }
+
+        for (YambaMetrics.Timer timer: timers) {
+            Object[] row = new Object[proj.length];
+            for (int i = 0; i < proj.length; i++) {
+                String col = proj[i];
+                if (YambaContract.Metrics.Columns.NAME.equals(col)) {
+                    row[i] = timer.getName();
+                }
+                else if (YambaContract.Metrics.Columns.COUNT.equals(col)) {
+                    row[i] = Long.valueOf(timer.getCount());
+                }
+                else if (YambaContract.Metrics.Columns.TOTAL.equals(col)) {
+                    row[i] = Long.valueOf(timer.getTotal());
+                }
+                else if (YambaContract.Metrics.Columns.MAX.equals(col)) {
+                    row[i] = Long.valueOf(timer.getMax());
+                }
+                else if (YambaContract.Metrics.Columns.P50.equals(col)) {
+                    row[i] = Long.valueOf(timer.getPercentile(50));
+                }
+                else if (YambaContract.Metrics.Columns.P90.equals(col)) {
+                    row[i] = Long.valueOf(timer.getPercentile(90));
+                }
+                else if (YambaContract.Metrics.Columns.P99.equals(col)) {
+                    row[i] = Long.valueOf(timer.getPercentile(99));
+                }
+                else {
+                    throw new IllegalArgumentException("Invalid column: " + col);
+                }
+            }
+            c.addRow(row);
+        }
+
+        // metrics change constantly: there is no notification
+        return c;
+    }
+
+    // LruCache is thread safe.  Concurrent misses may both build
+    // the same query: the result is the same, either way.
+    private String getQuery(QueryShape shape) {
+        String sql = queryCache.get(shape);
+        if (null != sql) {
+            YambaMetrics.Counter.QUERY_CACHE_HITS.increment();
+            return sql;
+        }
+        YambaMetrics.Counter.QUERY_CACHE_MISSES.increment();
+
+        sql = buildQuery(shape);
+        queryCache.put(shape.copy(), sql);
+        return sql;
+    }
+
+    /**
+     * The SQL for a page of the timeline, exactly as query builds it:
+     * for query plan tests.
+     *
+     * @param proj the requested contract columns: null for all
+     * @param sel the client's selection, in contract columns
+     * @param limit the row limit
+     * @param where the QueryShape WHERE_ clauses added by the provider
+     * @return the SQL
+     */
+    static String buildTimelinePageQuery(String[] proj, String sel, String limit, int where) {
+        return buildQuery(new QueryShape(TIMELINE_DIR_TYPE, proj, sel, SORT_TIMELINE_PAGE, limit, where));
+    }
+
+    /**
+     * The SQL for a search, exactly as query builds it:
+     * for query plan tests.
+     *
+     * @param proj the requested contract columns: null for all
+     * @param limit the row limit
+     * @return the SQL
+     */
+    static String buildSearchQuery(String[] proj, String limit) {
+        return buildQuery(
+            new QueryShape(SEARCH_DIR_TYPE, proj, null, SORT_SEARCH, limit, QueryShape.WHERE_MATCH));
+    }
+
+    private static String buildQuery(QueryShape shape) {
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        switch (shape.match) {
+            case TIMELINE_ITEM_TYPE:
+            case TIMELINE_DIR_TYPE:
+                qb.setTables(YambaDbHelper.JOIN_TIMELINE_USERS);
+                qb.setProjectionMap(PROJ_MAP_TIMELINE);
+                break;
+            case OUTBOX_ITEM_TYPE:
+            case OUTBOX_DIR_TYPE:
+                qb.setTables(YambaDbHelper.TABLE_OUTBOX);
+                qb.setProjectionMap(PROJ_MAP_OUTBOX);
+                break;
+            case SEARCH_DIR_TYPE:
+                qb.setTables(TABLES_SEARCH);
+                qb.setProjectionMap(PROJ_MAP_SEARCH);
+                // no words: no match
+                if (0 == (shape.where & QueryShape.WHERE_MATCH)) { qb.appendWhere("0"); }
+                break;
+            default:
+                throw new IllegalArgumentException("Unexpected query: " + shape.match);
+        }
+
+        boolean and = false;
+        if (0 != (shape.where & QueryShape.WHERE_PK)) {
+            qb.appendWhere(WHERE_PK);
+            and = true;
+        }
+        if (0 != (shape.where & QueryShape.WHERE_BEFORE)) {
+            if (and) { qb.appendWhere(" AND "); }
+            qb.appendWhere(WHERE_TIMELINE_BEFORE);
+            and = true;
+        }
+        if (0 != (shape.where & QueryShape.WHERE_SINCE)) {
+            if (and) { qb.appendWhere(" AND "); }
+            qb.appendWhere(WHERE_TIMELINE_SINCE);
+            and = true;
+        }
+        if (0 != (shape.where & QueryShape.WHERE_MATCH)) {
+            if (and) { qb.appendWhere(" AND "); }
+            qb.appendWhere(WHERE_SEARCH);
+        }
+
+        return qb.buildQuery(shape.proj, shape.sel, null, null, shape.sort, shape.limit);
+    }
+
+    private static boolean isMetricsColumn(String col) {
+        for (String metricsCol: COLS_METRICS) {
+            if (metricsCol.equals(col)) { return true; }
+        }
+        return false;
+    }
+
+    private static YambaMetrics.Timer getQueryTimer(int match) {
+        switch (match) {
+            case MAX_TIMELINE_ITEM_TYPE:
+                return YambaMetrics.Timer.QUERY_MAX_TIMELINE;
+            case SEARCH_DIR_TYPE:
+                return YambaMetrics.Timer.QUERY_SEARCH;
+            case OUTBOX_ITEM_TYPE:
+            case OUTBOX_DIR_TYPE:
+                return YambaMetrics.Timer.QUERY_OUTBOX;
+            case METRICS_DIR_TYPE:
+                return YambaMetrics.Timer.QUERY_METRICS;
+            default:
+                return YambaMetrics.Timer.QUERY_TIMELINE;
+        }
+    }
+
+    private Cursor queryMaxTimeline(Uri uri, String[] proj) {
+        if (null == proj) { proj = COLS_MAX_TIMELINE; }
+
+        HighWaterMark hwm = getHighWaterMark();
+        Object[] row = new Object[proj.length];
+        for (int i = 0; i < proj.length; i++) {
+            String col = proj[i];
+            if (YambaContract.MaxTimeline.Columns.TIMESTAMP.equals(col)) {
+                row[i] = (hwm.isEmpty()) ? null : Long.valueOf(hwm.getTimestamp());
+            }
+            else if (YambaContract.MaxTimeline.Columns.ID.equals(col)) {
+                row[i] = (hwm.isEmpty()) ? null : Long.valueOf(hwm.getId());
+            }
+            else {
+                throw new IllegalArgumentException("Invalid column: " + col);
+            }
+        }
+
+        MatrixCursor c = new MatrixCursor(proj, 1);
+        c.addRow(row);
+
+        c.setNotificationUri(getContext().getContentResolver(), uri);
+
+        return c;
+    }
+
+    // A load that loses the race to a concurrent write is discarded:
+    // every writer loads the mark before it commits.
+    private HighWaterMark getHighWaterMark() {
+        HighWaterMark hwm = highWaterMark.get();
+        if (null != hwm) { return hwm; }
+
+        Cursor c = getReadDb().rawQuery(QUERY_MAX_TIMELINE, null);
+        try {
+            hwm = ((!c.moveToNext()) || c.isNull(0))
+                ? HighWaterMark.EMPTY
+                : new HighWaterMark(c.getLong(0), c.getLong(1));
+        }
+        finally {
+            c.close();
+        }
+        Log.d(TAG, "loaded: " + hwm);
+
+        highWaterMark.compareAndSet(null, hwm);
+        return highWaterMark.get();
+    }
+
+    private void advanceHighWaterMark(HighWaterMark mark) {
+        while (true) {
+            HighWaterMark hwm = highWaterMark.get();
+            if (highWaterMark.compareAndSet(hwm, hwm.max(mark))) { return; }
+        }
+    }
+
+    // In WAL mode, a query outside a transaction gets a pooled
+    // connection of its own: readers never wait for the writer.
+    private SQLiteDatabase getReadDb() { return dbHelper.getReadableDatabase(); }
+
     private SQLiteDatabase getDb() { return dbHelper.getWritableDatabase(); }
 }
@@ -0,0 +1,198 @@
+package com.twitter.university.android.yamba.service;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Separate execution lanes for the service's network operations.
+ *
+ * Posts are user visible: they get their own lane, at default
+ * priority, and never wait behind a poll.  A post only queues its
+ * message in the outbox: a single outbox lane, also at default
+ * priority, sends it.  Polls run one at a time, at background
+ * priority.  An outbox drain or poll requested while another is still
+ * queued is coalesced with it.  Network calls in flight are capped
+ * by the lanes' thread counts: one drain and one poll.
+ *
+ * The listener is told when the lanes go idle, so that the service
+ * can stop itself.
+ */
+class OpLanes {
+    private static final String TAG = "LANES";
+
+    // one thread keeps posts in order
+    private static final int POST_THREADS = 1;
+    private static final int POST_QUEUE = 32;
+    private static final long KEEP_ALIVE_SECS = 30;
+
+    /** Idle listener */
+    public static interface Listener {
+        /** The lanes have no queued or running tasks */
+        void onIdle();
+    }
+
+    private static class LaneThreadFactory implements ThreadFactory {
+        private final String name;
+        private final int priority;
+        private final AtomicInteger n = new AtomicInteger();
+
+        LaneThreadFactory(String name, int priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(name + "-" + n.incrementAndGet()) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(priority);
+                    r.run();
+                }
+            };
+        }
+    }
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicBoolean pollQueued = new AtomicBoolean();
+    private final AtomicBoolean drainQueued = new AtomicBoolean();
+    private final Listener listener;
+    private final ExecutorService postLane;
+    private final ExecutorService outboxLane;
+    private final ExecutorService pollLane;
+
+    /**
+     * @param listener told when the lanes go idle
+     */
+    public OpLanes(Listener listener) {
+        this.listener = listener;
+
+        ThreadPoolExecutor posts = new ThreadPoolExecutor(
+            POST_THREADS,
+            POST_THREADS,
+            KEEP_ALIVE_SECS,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(POST_QUEUE),
+            new LaneThreadFactory("post", Process.THREAD_PRIORITY_DEFAULT));
+        posts.allowCoreThreadTimeOut(true);
+        postLane = posts;
+
+        ThreadPoolExecutor outbox = new ThreadPoolExecutor(
+            1,
+            1,
+            KEEP_ALIVE_SECS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new LaneThreadFactory("outbox", Process.THREAD_PRIORITY_DEFAULT));
+        outbox.allowCoreThreadTimeOut(true);
+        outboxLane = outbox;
+
+        ThreadPoolExecutor polls = new ThreadPoolExecutor(
+            1,
+            1,
+            KEEP_ALIVE_SECS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new LaneThreadFactory("poll", Process.THREAD_PRIORITY_BACKGROUND));
+        polls.allowCoreThreadTimeOut(true);
+        pollLane = polls;
+    }
+
+    /**
+     * @param op the post
+     * @return false iff the post lane is full and the op was rejected
+     */
+    public boolean submitPost(Runnable op) {
+        return submit(postLane, op);
+    }
+
+    /**
+     * @param op the outbox drain
+     * @return false iff a drain was already queued, and the op was coalesced with it
+     */
+    public boolean submitDrain(Runnable op) {
+        return submitCoalesced(outboxLane, drainQueued, op);
+    }
+
+    /**
+     * @param op the poll
+     * @return false iff a poll was already queued, and the op was coalesced with it
+     */
+    public boolean submitPoll(Runnable op) {
+        return submitCoalesced(pollLane, pollQueued, op);
+    }
+
+    /**
+     * @return true iff no op is queued or running
+     */
+    public boolean isIdle() { return 0 >= active.get(); }
+
+    /**
+     * Stop accepting ops.  Running ops complete.
+     */
+    public void shutdown() {
+        postLane.shutdown();
+        outboxLane.shutdown();
+        pollLane.shutdown();
+    }
+
+    // The flag is cleared as the op starts: a request that arrives
+    // while it is running is queued, and will see its changes.
+    private boolean submitCoalesced(
+        ExecutorService lane,
+        final AtomicBoolean queuedFlag,
+        final Runnable op)
+    {
+        if (!queuedFlag.compareAndSet(false, true)) {
+            if (BuildConfig.DEBUG) { Log.d(TAG, "op coalesced"); }
+            return false;
+        }
+
+        boolean queued = submit(
+            lane,
+            new Runnable() {
+                @Override
+                public void run() {
+                    queuedFlag.set(false);
+                    op.run();
+                }
+            });
+        if (!queued) { queuedFlag.set(false); }
+        return queued;
+    }
+
+    private boolean submit(ExecutorService lane, final Runnable op) {
+        active.incrementAndGet();
+        try {
+            lane.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try { op.run(); }
+                        finally { done(); }
+                    }
+                });
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            Log.w(TAG, "op rejected");
+            done();
+            return false;
+        }
+    }
+
+    private void done() {
+        if (0 >= active.decrementAndGet()) { listener.onIdle(); }
+    }
+}
@@ -0,0 +1,153 @@
+package com.twitter.university.android.yamba.service;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+
+/**
+ * Schedules each poll, with a one-shot alarm, when the previous one
+ * completes.  The interval halves after a busy poll and doubles after
+ * one that found nothing new, or failed.  It is bounded by the min and
+ * max intervals in the user's prefs.
+ *
+ * The scheduler's state is kept in its own preferences file, so that it
+ * survives the service, which stops whenever it is idle.
+ */
+class PollScheduler {
+    private static final String TAG = "POLLER";
+
+    private static final String PREFS = "poller";
+    private static final String KEY_ENABLED = "enabled";
+    private static final String KEY_INTERVAL = "interval";
+    private static final String KEY_NEXT = "next";
+
+    private static final long MINUTE = 60 * 1000;
+    private static final int POLLER = 666;
+
+    /**
+     * @param ctxt the context
+     * @return the current poll interval, in ms: 0 if polling is stopped
+     */
+    public static long getInterval(Context ctxt) {
+        SharedPreferences state = ctxt.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        return (!state.getBoolean(KEY_ENABLED, true))
+            ? 0
+            : state.getLong(KEY_INTERVAL, getDefaultInterval(ctxt));
+    }
+
+    private static long getDefaultInterval(Context ctxt) {
+        return ctxt.getResources().getInteger(R.integer.poll_interval) * MINUTE;
+    }
+
+
+    private final Context ctxt;
+    private final SharedPreferences state;
+    private final int busyPoll;
+
+    /**
+     * @param ctxt the service context
+     * @param pollSize the max number of statuses in a poll
+     */
+    public PollScheduler(Context ctxt, int pollSize) {
+        this.ctxt = ctxt;
+        this.state = ctxt.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        this.busyPoll = Math.max(1, pollSize / 2);
+    }
+
+    /**
+     * Start polling, immediately.  A default interval of 0 disables polling.
+     */
+    public synchronized void start() {
+        if (0 >= getDefaultInterval(ctxt)) { return; }
+        state.edit().putBoolean(KEY_ENABLED, true).apply();
+        schedule(System.currentTimeMillis() + 100);
+    }
+
+    /**
+     * Restart polling if it has been stopped, and it seems to have stalled:
+     * the last scheduled poll is long overdue.  Normally, either its alarm
+     * is pending or the poll is in progress, and will schedule the next.
+     */
+    public synchronized void resume() {
+        if (0 >= getDefaultInterval(ctxt)) { return; }
+        if (!state.getBoolean(KEY_ENABLED, true)) { return; }
+        long now = System.currentTimeMillis();
+        if (state.getLong(KEY_NEXT, 0) + getMaxInterval() > now) { return; }
+        schedule(now + 100);
+    }
+
+    /**
+     * Stop polling.
+     */
+    public synchronized void stop() {
+        state.edit().putBoolean(KEY_ENABLED, false).putLong(KEY_NEXT, 0).apply();
+        PendingIntent pi = createPollingIntent();
+        ((AlarmManager) ctxt.getSystemService(Context.ALARM_SERVICE)).cancel(pi);
+        pi.cancel();
+    }
+
+    /**
+     * Adapt the interval to a completed poll, and schedule the next.
+     *
+     * @param newRows the number of new statuses the poll found
+     * @param failed true iff the poll failed
+     */
+    public synchronized void onPollComplete(int newRows, boolean failed) {
+        long interval = getInterval(ctxt);
+        if (0 >= interval) { return; }
+
+        if (failed || (0 >= newRows)) { interval *= 2; }
+        else if (busyPoll <= newRows) { interval /= 2; }
+        interval = Math.max(getMinInterval(), Math.min(getMaxInterval(), interval));
+        if (BuildConfig.DEBUG) { Log.d(TAG, "interval: " + interval); }
+
+        state.edit().putLong(KEY_INTERVAL, interval).apply();
+        schedule(System.currentTimeMillis() + interval);
+    }
+
+    private void schedule(long when) {
+        state.edit().putLong(KEY_NEXT, when).apply();
+        ((AlarmManager) ctxt.getSystemService(Context.ALARM_SERVICE))
+            .set(AlarmManager.RTC, when, createPollingIntent());
+    }
+
+    private long getMinInterval() {
+        return getPrefInterval(R.string.prefs_key_poll_interval_min, R.integer.poll_interval_min);
+    }
+
+    private long getMaxInterval() {
+        return Math.max(
+            getMinInterval(),
+            getPrefInterval(R.string.prefs_key_poll_interval_max, R.integer.poll_interval_max));
+    }
+
+    private long getPrefInterval(int keyId, int defId) {
+        Resources rez = ctxt.getResources();
+        int mins = rez.getInteger(defId);
+        String pref = PreferenceManager.getDefaultSharedPreferences(ctxt)
+            .getString(rez.getString(keyId), null);
+        if (null != pref) {
+            try { mins = Integer.parseInt(pref.trim()); }
+            catch (NumberFormatException e) {
+                Log.w(TAG, "bad interval pref: " + pref);
+            }
+        }
+        return Math.max(1, mins) * MINUTE;
+    }
+
+    private PendingIntent createPollingIntent() {
+        Intent i = new Intent(ctxt, YambaService.class);
+        i.putExtra(YambaContract.Service.PARAM_OP, YambaContract.Service.OP_POLL);
+        return PendingIntent.getService(
+            ctxt,
+            POLLER,
+            i,
+            PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
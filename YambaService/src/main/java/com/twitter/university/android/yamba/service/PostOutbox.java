@@ -0,0 +1,168 @@
+package com.twitter.university.android.yamba.service;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import com.marakana.android.yamba.clientlib.YambaClient;
+import com.marakana.android.yamba.clientlib.YambaClientException;
+
+import java.util.Random;
+
+
+/**
+ * The durable queue of posts waiting to be sent.
+ *
+ * Posts are sent, strictly oldest first, by {@link #drain}.  A post
+ * that fails is retried with exponential backoff and jitter, until it
+ * has failed maxAttempts times.  Until then, it holds back every newer
+ * post: after a failure the drain stops, and the next one starts
+ * when the failed post is due again.
+ *
+ * Not thread safe: there must be only one drain in progress.
+ */
+class PostOutbox {
+    private static final String TAG = "OUTBOX";
+
+    private static final long BACKOFF_BASE = 15 * 1000;
+    private static final long BACKOFF_MAX = 30 * 60 * 1000;
+
+    private static final String[] PROJ = new String[] {
+        YambaContract.Outbox.Columns.ID,
+        YambaContract.Outbox.Columns.TWEET,
+        YambaContract.Outbox.Columns.ATTEMPTS,
+        YambaContract.Outbox.Columns.NEXT_ATTEMPT
+    };
+
+    /** Per post completion listener */
+    public static interface Listener {
+        /**
+         * @param id the outbox id of the post
+         * @param tweet the message
+         * @param succeeded true iff the message was posted
+         */
+        void onPostComplete(long id, String tweet, boolean succeeded);
+    }
+
+    private final Random jitter = new Random();
+    private final ContentResolver resolver;
+    private final int maxAttempts;
+
+    /**
+     * @param resolver the content resolver
+     * @param maxAttempts attempts to send a post, before it is dropped
+     */
+    public PostOutbox(ContentResolver resolver, int maxAttempts) {
+        this.resolver = resolver;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param tweet the message to post
+     * @return the outbox uri for the post, or null if it could not be queued
+     */
+    public Uri enqueue(String tweet) {
+        ContentValues vals = new ContentValues();
+        vals.put(YambaContract.Outbox.Columns.TWEET, tweet);
+        vals.put(YambaContract.Outbox.Columns.CREATED, Long.valueOf(System.currentTimeMillis()));
+        return resolver.insert(YambaContract.Outbox.URI, vals);
+    }
+
+    /**
+     * Send every post that is due.
+     *
+     * @param client the client: used for every post in the drain
+     * @param listener told when each post completes
+     * @return the time at which the oldest post left is due, or 0 if the outbox is empty
+     */
+    public long drain(YambaClient client, Listener listener) {
+        long[] ids;
+        String[] tweets;
+        int[] attempts;
+        long[] nextAttempts;
+
+        Cursor c = resolver.query(
+            YambaContract.Outbox.URI,
+            PROJ,
+            null,
+            null,
+            YambaContract.Outbox.Columns.ID + " ASC");
+        if (null == c) { return 0; }
+        try {
+            int n = c.getCount();
+            ids = new long[n];
+            tweets = new String[n];
+            attempts = new int[n];
+            nextAttempts = new long[n];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+                tweets[i] = c.getString(1);
+                attempts[i] = c.getInt(2);
+                nextAttempts[i] = c.getLong(3);
+            }
+        }
+        finally {
+            c.close();
+        }
+
+        long now = System.currentTimeMillis();
+        long next = 0;
+        int depth = ids.length;
+        for (int i = 0; i < ids.length; i++) {
+            // no post passes an older one
+            if (nextAttempts[i] > now) {
+                next = nextAttempts[i];
+                break;
+            }
+
+            Uri uri = ContentUris.withAppendedId(YambaContract.Outbox.URI, ids[i]);
+            long t = System.nanoTime();
+            try {
+                client.postStatus(tweets[i]);
+                YambaMetrics.Timer.POST.recordSince(t);
+                YambaMetrics.Counter.POSTS_SENT.increment();
+                resolver.delete(uri, null, null);
+                depth--;
+                listener.onPostComplete(ids[i], tweets[i], true);
+                continue;
+            }
+            catch (YambaClientException e) {
+                YambaMetrics.Timer.POST.recordSince(t);
+                Log.w(TAG, "post failed: " + ids[i], e);
+            }
+
+            int n = attempts[i] + 1;
+            if (n >= maxAttempts) {
+                YambaMetrics.Counter.POSTS_DROPPED.increment();
+                resolver.delete(uri, null, null);
+                depth--;
+                listener.onPostComplete(ids[i], tweets[i], false);
+                continue;
+            }
+
+            // the network is probably down
+            YambaMetrics.Counter.POST_RETRIES.increment();
+            next = now + getBackoff(n);
+            ContentValues vals = new ContentValues();
+            vals.put(YambaContract.Outbox.Columns.ATTEMPTS, Integer.valueOf(n));
+            vals.put(YambaContract.Outbox.Columns.NEXT_ATTEMPT, Long.valueOf(next));
+            resolver.update(uri, vals, null, null);
+            break;
+        }
+
+        YambaMetrics.Counter.OUTBOX_DEPTH.set(depth);
+
+        return next;
+    }
+
+    // exponential, with "equal jitter": between half and all of the delay
+    private long getBackoff(int attempts) {
+        long delay = BACKOFF_MAX;
+        if (attempts < 32) { delay = Math.min(BACKOFF_MAX, BACKOFF_BASE << (attempts - 1)); }
+        delay /= 2;
+        return delay + (long) (jitter.nextDouble() * delay);
+    }
+}
@@ -0,0 +1,181 @@
+package com.twitter.university.android.yamba.service;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.util.Log;
+
+import com.marakana.android.yamba.clientlib.YambaClient;
+
+import java.util.Arrays;
+import java.util.Date;
+
+
+/**
+ * Ingests the statuses newer than a (timestamp, id) watermark.
+ *
+ * The transport asks the server for a page of at most
+ * {@link #getLimit()} statuses newer than {@link #getMarkId()},
+ * and older than {@link #getMaxId()}.  It streams them, newest
+ * first, and checks {@link #isRunnable()} as it goes: in case the
+ * server ignores the request's parameters, this processor skips any
+ * status it has already collected, and stops the parse as soon as
+ * it reaches a status at or below the watermark, or once the page
+ * has collected its limit.  Nothing older is converted.
+ *
+ * A full page that does not reach the watermark may leave a gap:
+ * more statuses arrived since the last sync than fit in a page.
+ * While {@link #hasGap()}, the caller fills it, after
+ * {@link #nextPage()}, with the page of statuses older than those
+ * collected so far.
+ *
+ * New statuses are inserted in chunks, as they are parsed, so
+ * memory use does not grow with the limit.  The rows of a chunk
+ * are reused for the next one.  Call {@link #flush()} once the
+ * parse completes, to insert the last, partial, chunk.
+ */
+class TimelineSync implements YambaClient.TimelineProcessor {
+    private static final String TAG = "SYNC";
+
+    private static final int CHUNK_SIZE = 50;
+
+    private final ContentResolver resolver;
+    private final long markTimestamp;
+    private final long markId;
+    private final int limit;
+    private final ContentValues[] chunk;
+
+    private int chunkRows;
+    private int collected;
+    private int pageCollected;
+    private int inserted;
+    private long maxId = Long.MAX_VALUE;
+    private long minId = Long.MAX_VALUE;
+    private boolean reachedMark;
+    private boolean done;
+
+    /**
+     * @param resolver the resolver through which to insert new statuses
+     * @param markTimestamp timestamp of the newest known status
+     * @param markId id of the newest known status
+     * @param limit max number of statuses to collect, in a page
+     */
+    public TimelineSync(ContentResolver resolver, long markTimestamp, long markId, int limit) {
+        this.resolver = resolver;
+        this.markTimestamp = markTimestamp;
+        this.markId = markId;
+        this.limit = limit;
+        this.chunk = new ContentValues[Math.max(1, Math.min(limit, CHUNK_SIZE))];
+    }
+
+    @Override
+    public boolean isRunnable() { return !done; }
+
+    @Override
+    public void onStartProcessingTimeline() { }
+
+    @Override
+    public void onEndProcessingTimeline() {
+        if (hasGap()) {
+            Log.w(TAG, "more than " + limit + " new statuses: filling the gap");
+        }
+    }
+
+    @Override
+    public void onTimelineStatus(long id, Date createdAt, String user, String msg) {
+        if (done) { return; }
+        // a server that ignores max_id repeats statuses already collected
+        if (id > maxId) { return; }
+
+        long t = createdAt.getTime();
+        if ((t < markTimestamp) || ((t == markTimestamp) && (id <= markId))) {
+            reachedMark = true;
+            done = true;
+            return;
+        }
+
+        ContentValues cv = chunk[chunkRows];
+        if (null == cv) {
+            cv = new ContentValues();
+            chunk[chunkRows] = cv;
+        }
+        cv.put(YambaContract.Timeline.Columns.ID, Long.valueOf(id));
+        cv.put(YambaContract.Timeline.Columns.TIMESTAMP, Long.valueOf(t));
+        cv.put(YambaContract.Timeline.Columns.HANDLE, user);
+        cv.put(YambaContract.Timeline.Columns.TWEET, msg);
+        chunkRows++;
+        collected++;
+        pageCollected++;
+        minId = Math.min(minId, id);
+
+        if (chunk.length <= chunkRows) { flush(); }
+
+        if (pageCollected >= limit) { done = true; }
+    }
+
+    /**
+     * Prepare for the page of statuses older than those collected.
+     * Call it only after the current page has been parsed.
+     */
+    public void nextPage() {
+        maxId = minId - 1;
+        pageCollected = 0;
+        done = false;
+    }
+
+    /**
+     * Insert any statuses not yet inserted.
+     */
+    public void flush() {
+        if (0 >= chunkRows) { return; }
+        ContentValues[] rows = (chunk.length == chunkRows) ? chunk : Arrays.copyOf(chunk, chunkRows);
+        chunkRows = 0;
+        inserted += resolver.bulkInsert(YambaContract.Timeline.URI, rows);
+    }
+
+    /**
+     * If the current page filled its limit without reaching the
+     * watermark, there may be more statuses, older than those
+     * collected, that are newer than the watermark.  The very first
+     * sync has no watermark, and no gap: it takes only the newest page.
+     *
+     * @return true iff there may be statuses between the watermark and the oldest new status
+     */
+    public boolean hasGap() {
+        return (!reachedMark) && (Long.MIN_VALUE != markTimestamp) && (pageCollected >= limit);
+    }
+
+    /**
+     * Ids usually increase with timestamps, so this is normally
+     * the id of the watermark.
+     *
+     * @return an id smaller than that of any new status
+     */
+    public long getSince() {
+        return ((Long.MAX_VALUE == minId) || (minId > markId)) ? markId : minId - 1;
+    }
+
+    /**
+     * @return the id of the newest known status: Long.MIN_VALUE if none
+     */
+    public long getMarkId() { return markId; }
+
+    /**
+     * @return the largest id wanted in the current page: Long.MAX_VALUE for the newest page
+     */
+    public long getMaxId() { return maxId; }
+
+    /**
+     * @return max number of statuses to collect, in a page
+     */
+    public int getLimit() { return limit; }
+
+    /**
+     * @return the number of new statuses parsed, in every page
+     */
+    public int getCollected() { return collected; }
+
+    /**
+     * @return the number of rows actually inserted
+     */
+    public int getInserted() { return inserted; }
+}
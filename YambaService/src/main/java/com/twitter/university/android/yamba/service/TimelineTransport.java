@@ -0,0 +1,313 @@
+package com.twitter.university.android.yamba.service;
+
+import android.text.TextUtils;
+import android.util.Base64;
+import android.util.Log;
+import android.util.Xml;
+
+import com.marakana.android.yamba.clientlib.YambaClient;
+import com.marakana.android.yamba.clientlib.YambaClientException;
+import com.marakana.android.yamba.clientlib.YambaClientIOException;
+import com.marakana.android.yamba.clientlib.YambaClientTimeoutException;
+import com.marakana.android.yamba.clientlib.YambaClientUnauthorizedException;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Fetches the friends timeline, in place of the client library.
+ *
+ * The library builds, and shuts down, a new HttpClient for every
+ * request.  This transport uses HttpURLConnection, which keeps
+ * connections alive and pools them, per host, across requests.
+ * It asks for a gzipped response, for at most a count of statuses
+ * newer than a given id and, for an older page, no newer than
+ * another.  It makes a request for the newest page conditional on
+ * the validators (ETag, Last-Modified) of the last timeline that was
+ * completely processed: an unchanged timeline costs a 304.
+ * The validators of a fetch take effect only when the caller
+ * commits them, once it has stored everything it fetched.
+ *
+ * The response is parsed exactly as the library would parse it,
+ * and fed to the same {@link YambaClient.TimelineProcessor}.
+ * Posts still go through the library.
+ */
+class TimelineTransport {
+    private static final String TAG = "TRANSPORT";
+
+    private static final String PATH_TIMELINE = "/statuses/friends_timeline.xml";
+    private static final String PARAM_COUNT = "count";
+    private static final String PARAM_SINCE_ID = "since_id";
+    private static final String PARAM_MAX_ID = "max_id";
+    private static final String USER_AGENT = "YambaClient/1.0";
+    private static final String GZIP = "gzip";
+    private static final int TIMEOUT = 10 * 1000;
+    private static final int DRAIN_BUF_SIZE = 1024;
+
+    private static final String TAG_STATUS = "status";
+    private static final String TAG_ID = "id";
+    private static final String TAG_CREATED_AT = "created_at";
+    private static final String TAG_TEXT = "text";
+    private static final String TAG_USER = "user";
+    private static final String TAG_NAME = "name";
+
+    /**
+     * The validators of a fetched timeline.  Immutable.
+     */
+    public static final class Validators {
+        final String etag;
+        final String lastModified;
+
+        Validators(String etag, String lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final String timelineUri;
+    private final String auth;
+
+    // from the last completely processed timeline: null for none
+    private volatile Validators validators;
+
+    /**
+     * @param handle the user's handle
+     * @param pwd the user's password
+     * @param apiRoot the service root: null for the library's default
+     */
+    public TimelineTransport(String handle, String pwd, String apiRoot) {
+        if (TextUtils.isEmpty(handle)) { throw new IllegalArgumentException("Username must not be blank"); }
+        if (TextUtils.isEmpty(pwd)) { throw new IllegalArgumentException("Password must not be blank"); }
+        if (TextUtils.isEmpty(apiRoot)) { apiRoot = YambaClient.DEFAULT_API_ROOT; }
+
+        timelineUri = apiRoot + PATH_TIMELINE;
+        try { new URL(timelineUri); }
+        catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid API Root: " + apiRoot, e);
+        }
+
+        try {
+            auth = "Basic " + Base64.encodeToString((handle + ":" + pwd).getBytes("UTF-8"), Base64.NO_WRAP);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
+    }
+
+    /**
+     * Fetch the newest page.
+     *
+     * @param sinceId fetch only statuses with greater ids: Long.MIN_VALUE for all
+     * @param count max statuses to fetch
+     * @param proc the processor for the timeline's statuses
+     * @return the validators to commit, once the statuses are stored,
+     *   or null iff the timeline is unchanged: the processor was not called
+     * @throws YambaClientException on failure
+     */
+    public Validators fetchFriendsTimeline(long sinceId, int count, YambaClient.TimelineProcessor proc)
+        throws YambaClientException
+    {
+        return fetchFriendsTimeline(sinceId, Long.MAX_VALUE, count, proc);
+    }
+
+    /**
+     * Only a request for the newest page is conditional.
+     *
+     * @param sinceId fetch only statuses with greater ids: Long.MIN_VALUE for all
+     * @param maxId fetch only statuses with ids no greater: Long.MAX_VALUE for the newest
+     * @param count max statuses to fetch
+     * @param proc the processor for the timeline's statuses
+     * @return the validators to commit, once the statuses are stored,
+     *   or null iff the timeline is unchanged: the processor was not called
+     * @throws YambaClientException on failure
+     */
+    public Validators fetchFriendsTimeline(
+        long sinceId,
+        long maxId,
+        int count,
+        YambaClient.TimelineProcessor proc)
+        throws YambaClientException
+    {
+        long t = System.currentTimeMillis();
+        String timelineUrl = buildTimelineUrl(sinceId, maxId, count);
+        Validators tags;
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(timelineUrl).openConnection();
+            conn.setConnectTimeout(TIMEOUT);
+            conn.setReadTimeout(TIMEOUT);
+            conn.setRequestProperty("Authorization", auth);
+            conn.setRequestProperty("User-Agent", USER_AGENT);
+            conn.setRequestProperty("Accept-Encoding", GZIP);
+            Validators v = (Long.MAX_VALUE != maxId) ? null : validators;
+            if (null != v) {
+                if (null != v.etag) { conn.setRequestProperty("If-None-Match", v.etag); }
+                if (null != v.lastModified) { conn.setRequestProperty("If-Modified-Since", v.lastModified); }
+            }
+
+            int status = conn.getResponseCode();
+            switch (status) {
+                case HttpURLConnection.HTTP_OK:
+                    break;
+                case HttpURLConnection.HTTP_NOT_MODIFIED:
+                    if (BuildConfig.DEBUG) { Log.d(TAG, "timeline not modified"); }
+                    // no body: closing the empty stream returns the connection to the pool
+                    try { closeQuietly(conn.getInputStream()); }
+                    catch (IOException e) { conn.disconnect(); }
+                    return null;
+                case HttpURLConnection.HTTP_UNAUTHORIZED:
+                    closeQuietly(conn.getErrorStream());
+                    throw new YambaClientUnauthorizedException("Unauthorized: " + timelineUrl);
+                default:
+                    closeQuietly(conn.getErrorStream());
+                    throw new YambaClientException(
+                        "Unexpected response [" + status + "] while fetching: " + timelineUrl);
+            }
+
+            tags = new Validators(conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+
+            InputStream in = new BufferedInputStream(conn.getInputStream());
+            try {
+                if (GZIP.equalsIgnoreCase(conn.getContentEncoding())) {
+                    in = new GZIPInputStream(in);
+                }
+                parseTimeline(in, proc);
+                // a connection is reused only if its response was read completely
+                drain(in);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (SocketTimeoutException e) {
+            throw new YambaClientTimeoutException("Timeout while communicating to " + timelineUrl, e);
+        }
+        catch (IOException e) {
+            throw new YambaClientIOException("I/O error while communicating to " + timelineUrl, e);
+        }
+        catch (XmlPullParserException e) {
+            throw new YambaClientException("Unexpected error while communicating to " + timelineUrl, e);
+        }
+        catch (ParseException e) {
+            throw new YambaClientException("Unexpected error while communicating to " + timelineUrl, e);
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "fetched timeline in " + (System.currentTimeMillis() - t) + "ms");
+        }
+        return tags;
+    }
+
+    /**
+     * Make the next fetch conditional on a timeline that has been
+     * completely processed, and stored.
+     *
+     * @param tags the validators returned by its fetch
+     */
+    public void commit(Validators tags) { validators = tags; }
+
+    // Another since_id is another resource: its validators do not match
+    private String buildTimelineUrl(long sinceId, long maxId, int count) {
+        StringBuilder url = new StringBuilder(timelineUri)
+            .append('?').append(PARAM_COUNT).append('=').append(count);
+        if (Long.MIN_VALUE != sinceId) { url.append('&').append(PARAM_SINCE_ID).append('=').append(sinceId); }
+        if (Long.MAX_VALUE != maxId) { url.append('&').append(PARAM_MAX_ID).append('=').append(maxId); }
+        return url.toString();
+    }
+
+    // The same tags, and the same callbacks, as the library's parser.
+    // A status without an id or a creation time is skipped: a
+    // processor can rely on both.  A malformed id fails the fetch.
+    private void parseTimeline(InputStream in, YambaClient.TimelineProcessor proc)
+        throws XmlPullParserException, IOException, ParseException, YambaClientException
+    {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(YambaClient.DATE_FORMAT_PATTERN, Locale.US);
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(in, "UTF-8");
+
+        List<String> tags = new ArrayList<String>();
+        long id = -1;
+        Date createdAt = null;
+        String user = null;
+        String text = null;
+
+        int event = parser.getEventType();
+        while ((XmlPullParser.END_DOCUMENT != event) && proc.isRunnable()) {
+            switch (event) {
+                case XmlPullParser.START_DOCUMENT:
+                    proc.onStartProcessingTimeline();
+                    break;
+
+                case XmlPullParser.START_TAG:
+                    tags.add(parser.getName());
+                    break;
+
+                case XmlPullParser.END_TAG:
+                    if (TAG_STATUS.equals(tags.remove(tags.size() - 1))) {
+                        if ((0 > id) || (null == createdAt)) { Log.w(TAG, "skipped incomplete status: " + id); }
+                        else { proc.onTimelineStatus(id, createdAt, user, text); }
+                        id = -1;
+                        createdAt = null;
+                        user = null;
+                        text = null;
+                    }
+                    break;
+
+                case XmlPullParser.TEXT:
+                    if (endsWithTags(tags, TAG_STATUS, TAG_ID)) {
+                        try { id = Long.parseLong(parser.getText().trim()); }
+                        catch (NumberFormatException e) {
+                            throw new YambaClientException("Malformed status id: " + parser.getText(), e);
+                        }
+                    }
+                    else if (endsWithTags(tags, TAG_STATUS, TAG_CREATED_AT)) {
+                        createdAt = dateFormat.parse(parser.getText());
+                    }
+                    else if (endsWithTags(tags, TAG_STATUS, TAG_TEXT)) {
+                        text = parser.getText();
+                    }
+                    else if (endsWithTags(tags, TAG_USER, TAG_NAME)) {
+                        user = parser.getText();
+                    }
+                    break;
+
+                default:
+            }
+            event = parser.next();
+        }
+
+        proc.onEndProcessingTimeline();
+    }
+
+    private static boolean endsWithTags(List<String> tags, String parent, String child) {
+        int n = tags.size();
+        return (2 <= n) && child.equals(tags.get(n - 1)) && parent.equals(tags.get(n - 2));
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buf = new byte[DRAIN_BUF_SIZE];
+        while (0 <= in.read(buf)) { continue; }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (null == in) { return; }
+        try { in.close(); }
+        catch (IOException e) { Log.w(TAG, "close failed", e); }
+    }
+}
@@ -4,19 +4,48 @@ import android.app.Application;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.marakana.android.yamba.clientlib.YambaClient;
 import com.marakana.android.yamba.clientlib.YambaClientException;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 
 public class YambaApplication extends Application
     implements SharedPreferences.OnSharedPreferenceChangeListener
 {
     private static final String TAG = "APP";
 
+    // The clients for one set of credentials.  Immutable: a change
+    // of credentials swaps in a new instance.  Requests in flight
+    // finish with the clients they started with.
+    private static final class Clients {
+        final String hdl;
+        final String pwd;
+        final String uri;
+        final YambaClient yamba;
+        final TimelineTransport transport;
+
+        // throws IllegalArgumentException if the credentials are invalid
+        Clients(String hdl, String pwd, String uri) {
+            this.hdl = hdl;
+            this.pwd = pwd;
+            this.uri = uri;
+            this.yamba = new YambaClient(hdl, pwd, uri);
+            this.transport = new TimelineTransport(hdl, pwd, uri);
+        }
+
+        boolean isFor(String h, String p, String u) {
+            return TextUtils.equals(hdl, h) && TextUtils.equals(pwd, p) && TextUtils.equals(uri, u);
+        }
+    }
+
+
+    // null until first use, and while the credentials are invalid
+    private final AtomicReference<Clients> clients = new AtomicReference<Clients>();
 
-    private YambaClient yamba;
     private String hdlKey;
     private String pwdKey;
     private String uriKey;
@@ -38,29 +67,63 @@ public class YambaApplication extends Application
             .registerOnSharedPreferenceChangeListener(this);
     }
 
+    // Called after the change is committed: a concurrent first use,
+    // that read the old values, either loses its CAS to this set,
+    // or is replaced by it.
     @Override
-    public synchronized void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
-        if (BuildConfig.DEBUG) { Log.d(TAG, "prefs changed"); }
-        yamba = null;
+    public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+        if (!(hdlKey.equals(key) || pwdKey.equals(key) || uriKey.equals(key))) { return; }
+
+        String hdl = prefs.getString(hdlKey, null);
+        String pwd = prefs.getString(pwdKey, null);
+        String uri = prefs.getString(uriKey, null);
+
+        Clients current = clients.get();
+        if ((null != current) && current.isFor(hdl, pwd, uri)) { return; }
+
+        if (BuildConfig.DEBUG) { Log.d(TAG, "credentials changed"); }
+        Clients updated = null;
+        try { updated = new Clients(hdl, pwd, uri); }
+        catch (IllegalArgumentException e) {
+            Log.d(TAG, "invalid credentials");
+        }
+        clients.set(updated);
+
+        // posts may be waiting for usable credentials
+        if (null != updated) { YambaService.drainOutbox(this); }
+    }
+
+    public YambaClient getYambaClient() throws YambaClientException {
+        return getClients().yamba;
+    }
+
+    TimelineTransport getTimelineTransport() throws YambaClientException {
+        return getClients().transport;
     }
 
-    public synchronized YambaClient getYambaClient() throws YambaClientException {
-        if (null == yamba) {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-            String hdl = prefs.getString(hdlKey, null);
-            String pwd = prefs.getString(pwdKey, null);
-            String uri = prefs.getString(uriKey, null);
-
-            if (BuildConfig.DEBUG) {
-                Log.d(TAG, "new handle: " + hdl + "," + pwd  + " @" + uri);
-            }
-            try { yamba = new YambaClient(hdl, pwd, uri); }
-            catch (IllegalArgumentException e) {
-                Log.d(TAG, "failed to create client");
-                throw new YambaClientException("failed to create client", e);
-            }
+    private Clients getClients() throws YambaClientException {
+        Clients current = clients.get();
+        if (null != current) { return current; }
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        String hdl = prefs.getString(hdlKey, null);
+        String pwd = prefs.getString(pwdKey, null);
+        String uri = prefs.getString(uriKey, null);
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "new handle: " + hdl + "," + pwd  + " @" + uri);
         }
+        try { current = new Clients(hdl, pwd, uri); }
+        catch (IllegalArgumentException e) {
+            Log.d(TAG, "failed to create client");
+            throw new YambaClientException("failed to create client", e);
+        }
+
+        if (clients.compareAndSet(null, current)) { return current; }
 
-        return yamba;
+        // lost to a concurrent load, or to a change of credentials
+        current = clients.get();
+        if (null == current) { throw new YambaClientException("invalid credentials"); }
+        return current;
     }
 }
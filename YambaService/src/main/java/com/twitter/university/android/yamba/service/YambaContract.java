@@ -34,7 +34,8 @@ public class YambaContract {
         // method id parameter value: stop polling.  No parameters.
         public static final int OP_STOP_POLLING = -4;
 
-        // Parameter to EXECUTE|POST: String - the tweet message to be posted
+        // Parameter to EXECUTE|POST: String - the tweet message to be posted.
+        // Also a parameter to ACTION_POST_COMPLETE: the posted message.
         public static final String PARAM_TWEET
             = "com.twitter.university.android.yamba.service.TWEET";
 
@@ -50,6 +51,11 @@ public class YambaContract {
         public static final String PARAM_COUNT
             = "com.twitter.university.android.yamba.action.NEW_TWEET_COUNT";
 
+        // Timeline updated broadcast parameter: long - every new tweet has
+        // a larger id.  Query Timeline.since(watermark) for just the new tweets.
+        public static final String PARAM_SINCE
+            = "com.twitter.university.android.yamba.action.SINCE";
+
         // Yamba Service post complete
         public static final String ACTION_POST_COMPLETE
             = "com.twitter.university.android.yamba.service.action.POST_COMPLETE";
@@ -61,6 +67,10 @@ public class YambaContract {
         // Parameter to ACTION_POST_COMPLETE: boolean - true iff post succeeded
         public static final String PARAM_POST_SUCCEEDED
             = "com.twitter.university.android.yamba.action.NEW_TWEET_COUNT";
+
+        // Parameter to ACTION_POST_COMPLETE: long - the post's Outbox id
+        public static final String PARAM_POST_ID
+            = "com.twitter.university.android.yamba.action.POST_ID";
     }
 
     public static final String AUTHORITY = "com.twitter.university.android.yamba.timeline";
@@ -89,6 +99,84 @@ public class YambaContract {
         public static final String DIR_TYPE
             = ContentResolver.CURSOR_DIR_BASE_TYPE + MINOR_TYPE;
 
+        // bulkInsert and insert query parameter: policy for rows whose id
+        // is already in the timeline.  One of the CONFLICT_ values: default
+        // ignore.  bulkInsert returns the number of rows inserted or updated.
+        public static final String PARAM_CONFLICT = "conflict";
+        // keep the existing row
+        public static final String CONFLICT_IGNORE = "ignore";
+        // replace the existing row
+        public static final String CONFLICT_REPLACE = "replace";
+        // update the existing row, if any column has changed: columns
+        // missing from, or null in, the new row keep their values
+        public static final String CONFLICT_UPDATE = "update";
+
+        // A query with no sort order returns rows newest first,
+        // by timestamp and then id.
+
+        // query parameter: the max number of rows to return
+        public static final String PARAM_LIMIT = "limit";
+        // query parameter: "<timestamp>,<id>" - return only rows older
+        // than the given row.  Either paging parameter orders the
+        // result newest first, by timestamp and then id, and replaces
+        // any requested sort order.
+        public static final String PARAM_BEFORE = "before";
+
+        // query parameter: an id - return only rows with larger ids.
+        // See since(long).
+        public static final String PARAM_SINCE = "since";
+
+        // Change notifications are coalesced: a burst of changes causes
+        // a single notification, shortly after the first of them.
+        // If the burst only added rows newer than any already in the
+        // timeline, the notification uri (see ContentObserver.onChange)
+        // has PARAM_SINCE: the max id in the timeline, before the change,
+        // and PARAM_NEWEST.  If they are absent, anything may have changed.
+        // An applyBatch runs in a single transaction: it causes a single
+        // notification, after it commits.
+        // notification parameter: the max id in the timeline, after the change
+        public static final String PARAM_NEWEST = "newest";
+
+        /**
+         * @param limit max rows in the page
+         * @return uri for the first, newest, page of the timeline
+         */
+        public static Uri pageUri(int limit) {
+            return URI.buildUpon()
+                .appendQueryParameter(PARAM_LIMIT, String.valueOf(limit))
+                .build();
+        }
+
+        /**
+         * Pass the timestamp and id of the last row in a page
+         * to get the next page.
+         *
+         * @param timestamp timestamp of the last row in the previous page
+         * @param id id of the last row in the previous page
+         * @param limit max rows in the page
+         * @return uri for the page of the timeline, after the given row
+         */
+        public static Uri pageUri(long timestamp, long id, int limit) {
+            return URI.buildUpon()
+                .appendQueryParameter(PARAM_BEFORE, timestamp + "," + id)
+                .appendQueryParameter(PARAM_LIMIT, String.valueOf(limit))
+                .build();
+        }
+
+        /**
+         * The watermark is the PARAM_SINCE value from a change
+         * notification uri, or from a timeline updated broadcast.
+         * Only the new rows are read, from the primary key index.
+         *
+         * @param watermark an id
+         * @return uri for the rows with ids larger than the watermark
+         */
+        public static Uri since(long watermark) {
+            return URI.buildUpon()
+                .appendQueryParameter(PARAM_SINCE, String.valueOf(watermark))
+                .build();
+        }
+
         public static class Columns {
             public static final String ID = BaseColumns._ID;
             public static final String HANDLE = "handle";
@@ -109,7 +197,134 @@ public class YambaContract {
             = ContentResolver.CURSOR_ITEM_BASE_TYPE + MINOR_TYPE;
 
         public static class Columns {
+            // the newest timestamp in the timeline: null if it is empty
             public static final String TIMESTAMP = "timestamp";
+            // the largest id in the timeline: null if it is empty
+            public static final String ID = "id";
+        }
+    }
+
+    // Posts waiting to be sent: the service removes each one
+    // once it has been posted, or has failed too many times.
+    public static class Outbox {
+        private Outbox() { }
+
+        public static final String TABLE = "outbox";
+
+        public static final Uri URI = BASE_URI.buildUpon().appendPath(TABLE).build();
+
+        private static final String MINOR_TYPE = "/vnd." + AUTHORITY + "." + TABLE;
+
+        public static final String ITEM_TYPE
+            = ContentResolver.CURSOR_ITEM_BASE_TYPE + MINOR_TYPE;
+        public static final String DIR_TYPE
+            = ContentResolver.CURSOR_DIR_BASE_TYPE + MINOR_TYPE;
+
+        public static class Columns {
+            public static final String ID = BaseColumns._ID;
+            public static final String TWEET = "tweet";
+            // time the post was queued
+            public static final String CREATED = "created";
+            // number of failed attempts to send it
+            public static final String ATTEMPTS = "attempts";
+            // earliest time at which to try again
+            public static final String NEXT_ATTEMPT = "nextAttempt";
         }
     }
+
+    // Full text search of the timeline.  Rows have the Timeline columns.
+    // Each word in the query matches words that start with it, in the
+    // tweet or the handle.  Rows with more matches come first, then newer.
+    public static class Search {
+        private Search() { }
+
+        public static final String TABLE = "search";
+
+        public static final Uri URI = BASE_URI.buildUpon().appendPath(TABLE).build();
+
+        public static final String DIR_TYPE = Timeline.DIR_TYPE;
+
+        // query parameter: the words to search for
+        public static final String PARAM_QUERY = "q";
+        // query parameter: if true, match only handles
+        public static final String PARAM_HANDLE_ONLY = "handleOnly";
+        // query parameter: the max number of rows to return
+        public static final String PARAM_LIMIT = "limit";
+
+        /**
+         * @param query the words to search for
+         * @param limit max rows to return
+         * @return the search uri
+         */
+        public static Uri searchUri(String query, int limit) {
+            return URI.buildUpon()
+                .appendQueryParameter(PARAM_QUERY, query)
+                .appendQueryParameter(PARAM_LIMIT, String.valueOf(limit))
+                .build();
+        }
+    }
+
+    // Always-on instrumentation: one row per metric.  Counters have
+    // only a count.  Timers also have the total, max and percentile
+    // durations, in microseconds.  Percentiles are accurate to within
+    // a factor of two.  Values are cumulative, since the process started.
+    public static class Metrics {
+        private Metrics() { }
+
+        public static final String TABLE = "metrics";
+
+        public static final Uri URI = BASE_URI.buildUpon().appendPath(TABLE).build();
+
+        private static final String MINOR_TYPE = "/vnd." + AUTHORITY + "." + TABLE;
+
+        public static final String DIR_TYPE
+            = ContentResolver.CURSOR_DIR_BASE_TYPE + MINOR_TYPE;
+
+        public static class Columns {
+            public static final String NAME = "name";
+            // counter value, or the number of durations timed
+            public static final String COUNT = "count";
+            // timers only: null for counters
+            public static final String TOTAL = "total";
+            public static final String MAX = "max";
+            public static final String P50 = "p50";
+            public static final String P90 = "p90";
+            public static final String P99 = "p99";
+        }
+    }
+
+    // The whole timeline, as a stream: see ContentResolver.openInputStream
+    // and openOutputStream.  Reading gives a binary snapshot of every
+    // row.  Writing a snapshot merges its rows into the timeline, in
+    // the background, as they arrive; the Timeline PARAM_CONFLICT
+    // parameter, on this uri, applies.  Rows are committed, and
+    // observers of the Timeline uri notified, a few thousand at a
+    // time: a snapshot that fails part way through leaves the rows
+    // before the failed chunk imported.  A large
+    // import is trimmed to the retention limits by the next prune: one
+    // runs in the background after a bulkInsert, at most every ten minutes.
+    //
+    // A failed read or import closes the pipe with an error: on
+    // API 19 and later, see ParcelFileDescriptor.checkError.
+    //
+    // A snapshot is: int MAGIC, int VERSION, then each row, preceded
+    // by the byte 1, and then the byte 0.  A row is: long id,
+    // long timestamp, handle, tweet.  A string is an int byte count,
+    // -1 for null, followed by that many bytes of UTF-8.  Big-endian.
+    // No string is longer than MAX_STRING_BYTES: an export fails on a
+    // row with a longer one, and an import rejects it as malformed.
+    public static class Snapshot {
+        private Snapshot() { }
+
+        public static final String TABLE = "snapshot";
+
+        public static final Uri URI = BASE_URI.buildUpon().appendPath(TABLE).build();
+
+        public static final String TYPE = "application/vnd." + AUTHORITY + "." + TABLE;
+
+        public static final int MAGIC = 0x59534e50;
+        public static final int VERSION = 1;
+        // the longest handle or tweet, in bytes of UTF-8
+        public static final int MAX_STRING_BYTES = 1024 * 1024;
+    }
 }
@@ -0,0 +1,175 @@
+package com.twitter.university.android.yamba.service;
+
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Always on, process wide, instrumentation.  Every update is
+ * a handful of atomic operations: nothing is ever locked or allocated.
+ *
+ * Counters count events.  Timers record durations, in microseconds,
+ * into a histogram with power-of-two buckets: percentiles are
+ * reported as the upper bound of their bucket, so they are
+ * accurate to within a factor of two.
+ *
+ * Read through {@link YambaContract.Metrics}, or in the log,
+ * in which they are dumped every DUMP_INTERVAL.
+ */
+public final class YambaMetrics {
+    private static final String TAG = "METRICS";
+
+    private static final long DUMP_INTERVAL = 15 * 60 * 1000;
+    private static final int BUCKETS = 40;
+
+    /** Event counts */
+    public static enum Counter {
+        /** polls attempted */ POLLS,
+        /** polls that failed */ POLL_FAILURES,
+        /** polls for which the server reported no change */ POLLS_UNCHANGED,
+        /** new statuses parsed by polls */ STATUSES_FETCHED,
+        /** new statuses the provider did not insert */ STATUSES_SKIPPED,
+        /** timeline rows inserted */ ROWS_INSERTED,
+        /** timeline rows updated */ ROWS_UPDATED,
+        /** snapshot imports that failed */ SNAPSHOT_IMPORT_FAILURES,
+        /** provider queries whose SQL was cached */ QUERY_CACHE_HITS,
+        /** provider queries whose SQL had to be built */ QUERY_CACHE_MISSES,
+        /** timeline queries served from memory */ TIMELINE_CACHE_HITS,
+        /** cacheable timeline queries that went to the db */ TIMELINE_CACHE_MISSES,
+        /** posts sent */ POSTS_SENT,
+        /** failed attempts to send a post, that will be retried */ POST_RETRIES,
+        /** posts dropped after too many failures */ POSTS_DROPPED,
+        /** posts in the outbox, after the last drain: a gauge */ OUTBOX_DEPTH;
+
+        private final AtomicLong value = new AtomicLong();
+
+        /** Count one event */
+        public void increment() { value.incrementAndGet(); }
+
+        /** @param n number of events */
+        public void add(long n) { value.addAndGet(n); }
+
+        /** @param n the new value: for gauges */
+        public void set(long n) { value.set(n); }
+
+        /** @return the current value */
+        public long get() { return value.get(); }
+
+        /** @return the name, as reported */
+        public String getName() { return name().toLowerCase(Locale.US); }
+    }
+
+    /** Latency histograms */
+    public static enum Timer {
+        /** a complete poll: fetch and insert */ POLL,
+        /** a single attempt to send a post */ POST,
+        /** a bulk insert transaction */ BULK_INSERT,
+        /** timeline queries */ QUERY_TIMELINE,
+        /** search queries */ QUERY_SEARCH,
+        /** max timeline queries */ QUERY_MAX_TIMELINE,
+        /** outbox queries */ QUERY_OUTBOX,
+        /** metrics queries */ QUERY_METRICS,
+        /** a whole snapshot export */ SNAPSHOT_EXPORT,
+        /** a whole snapshot import */ SNAPSHOT_IMPORT;
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        /**
+         * @param startNanos the start of the operation, from System.nanoTime()
+         */
+        public void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        /**
+         * @param micros a duration, in microseconds
+         */
+        public void record(long micros) {
+            if (0 > micros) { micros = 0; }
+            count.incrementAndGet();
+            total.addAndGet(micros);
+            buckets.incrementAndGet(
+                Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+            while (true) {
+                long m = max.get();
+                if ((micros <= m) || max.compareAndSet(m, micros)) { break; }
+            }
+        }
+
+        /** @return the number of durations recorded */
+        public long getCount() { return count.get(); }
+
+        /** @return the sum of the durations recorded, in microseconds */
+        public long getTotal() { return total.get(); }
+
+        /** @return the longest duration recorded, in microseconds */
+        public long getMax() { return max.get(); }
+
+        /**
+         * The buckets are read one at a time, concurrently with updates:
+         * the result is approximate, in any case.
+         *
+         * @param pct a percentile, 0 - 100
+         * @return an upper bound on the duration at that percentile, in microseconds
+         */
+        public long getPercentile(int pct) {
+            long n = 0;
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                n += counts[i];
+            }
+            if (0 >= n) { return 0; }
+
+            long rank = Math.max(1, (n * pct + 99) / 100);
+            for (int i = 0; i < BUCKETS; i++) {
+                rank -= counts[i];
+                if (0 >= rank) { return Math.min(max.get(), (1L << i) - 1); }
+            }
+            return max.get();
+        }
+
+        /** @return the name, as reported */
+        public String getName() { return name().toLowerCase(Locale.US); }
+    }
+
+    private static final AtomicLong lastDump = new AtomicLong(System.currentTimeMillis());
+
+    private YambaMetrics() { }
+
+    /**
+     * Dump every metric to the log, if none has been done
+     * for DUMP_INTERVAL.  The CAS elects a single dumper.
+     */
+    public static void maybeDump() {
+        long now = System.currentTimeMillis();
+        long last = lastDump.get();
+        if ((now - last < DUMP_INTERVAL) || !lastDump.compareAndSet(last, now)) { return; }
+        dump();
+    }
+
+    /**
+     * Dump every metric to the log.
+     */
+    public static void dump() {
+        for (Counter counter: Counter.values()) {
+            Log.i(TAG, counter.getName() + ": " + counter.get());
+        }
+        for (Timer timer: Timer.values()) {
+            long n = timer.getCount();
+            if (0 >= n) { continue; }
+            Log.i(TAG, timer.getName() + ": n=" + n
+                + " mean=" + (timer.getTotal() / n)
+                + " p50=" + timer.getPercentile(50)
+                + " p90=" + timer.getPercentile(90)
+                + " p99=" + timer.getPercentile(99)
+                + " max=" + timer.getMax() + "us");
+        }
+    }
+}
@@ -1,26 +1,33 @@
 package com.twitter.university.android.yamba.service;
 
 import android.app.AlarmManager;
-import android.app.IntentService;
 import android.app.PendingIntent;
-import android.content.ContentValues;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.net.Uri;
+import android.os.IBinder;
 import android.util.Log;
 
 import com.marakana.android.yamba.clientlib.YambaClient;
 import com.marakana.android.yamba.clientlib.YambaClientException;
 
-import java.util.ArrayList;
-import java.util.List;
 
-
-public class YambaService extends IntentService {
+public class YambaService extends Service
+    implements OpLanes.Listener, PostOutbox.Listener
+{
     private static final String TAG = "SVC";
 
-    private static final int POLLER = 666;
+    private static final int DRAINER = 667;
+
+    // at most this many pages, pollSize statuses each, in a poll:
+    // the retention limits would prune a larger catch-up anyway
+    private static final int MAX_GAP_PAGES = 10;
+
+    // internal op: send the posts waiting in the outbox
+    private static final int OP_DRAIN_OUTBOX = -100;
 
     public static void startPoller(Context ctxt) {
         Intent i = new Intent(ctxt, YambaService.class);
@@ -28,11 +35,33 @@ public class YambaService extends IntentService {
         ctxt.startService(i);
     }
 
+    /**
+     * Send the posts waiting in the outbox, that are due.
+     *
+     * @param ctxt the context
+     */
+    public static void drainOutbox(Context ctxt) {
+        Intent i = new Intent(ctxt, YambaService.class);
+        i.putExtra(YambaContract.Service.PARAM_OP, OP_DRAIN_OUTBOX);
+        ctxt.startService(i);
+    }
+
+    /**
+     * @param ctxt the context
+     * @return the current, adaptive, poll interval in ms: 0 if polling is stopped
+     */
+    public static long getPollInterval(Context ctxt) {
+        return PollScheduler.getInterval(ctxt);
+    }
+
 
     private volatile int pollSize;
-    private volatile long pollInterval;
+    private volatile int lastStartId;
 
-    public YambaService() { super(TAG); }
+    private OpLanes lanes;
+    private PollScheduler poller;
+    private PostOutbox outbox;
+    private Runnable drainOp;
 
     @Override
     public void onCreate() {
@@ -41,154 +70,232 @@ public class YambaService extends IntentService {
 
         Resources rez = getResources();
         pollSize = rez.getInteger(R.integer.poll_size);
-        pollInterval = rez.getInteger(R.integer.poll_interval) * 60 * 1000;
 
-        doStartPoller();
+        lanes = new OpLanes(this);
+        poller = new PollScheduler(this, pollSize);
+        outbox = new PostOutbox(
+            getContentResolver(),
+            rez.getInteger(R.integer.post_max_attempts));
+        drainOp = new Runnable() {
+            @Override public void run() { doDrainOutbox(); }
+        };
+
+        // in case a poll was lost, with the process that was running it
+        poller.resume();
+
+        // posts queued before a restart
+        lanes.submitDrain(drainOp);
    }
 
     @Override
     public void onDestroy() {
+        lanes.shutdown();
         super.onDestroy();
         if (BuildConfig.DEBUG) { Log.d(TAG, "destroyed"); }
     }
 
     @Override
-    protected void onHandleIntent(Intent i) {
-        int op = i.getIntExtra(YambaContract.Service.PARAM_OP, 0);
+    public IBinder onBind(Intent i) { return null; }
+
+    @Override
+    public int onStartCommand(Intent i, int flags, int startId) {
+        int op = (null == i) ? 0 : i.getIntExtra(YambaContract.Service.PARAM_OP, 0);
         if (BuildConfig.DEBUG) { Log.d(TAG, "exec: " + op); }
         switch (op) {
             case YambaContract.Service.OP_POST:
-                doPost(i.getStringExtra(YambaContract.Service.PARAM_TWEET));
+                final String tweet = i.getStringExtra(YambaContract.Service.PARAM_TWEET);
+                boolean queued = lanes.submitPost(
+                    new Runnable() {
+                        @Override public void run() { doPost(tweet); }
+                    });
+                if (!queued) { notifyPost(-1, tweet, false); }
+                break;
+
+            case OP_DRAIN_OUTBOX:
+                lanes.submitDrain(drainOp);
                 break;
 
             case YambaContract.Service.OP_POLL:
-                doPoll();
+                lanes.submitPoll(
+                    new Runnable() {
+                        @Override public void run() { doPoll(); }
+                    });
                 break;
 
             case YambaContract.Service.OP_START_POLLING:
-                doStartPoller();
+                poller.start();
                 break;
 
             case YambaContract.Service.OP_STOP_POLLING:
-                doStopPoller();
+                poller.stop();
                 break;
 
             default:
                 Log.e(TAG, "Unexpected op: " + op);
         }
+
+        // Must follow the submit: if the lanes go idle in between,
+        // stopping with the previous id is a no-op.
+        lastStartId = startId;
+        if (lanes.isIdle()) { stopSelf(startId); }
+
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onIdle() {
+        if (BuildConfig.DEBUG) { Log.d(TAG, "idle"); }
+        stopSelf(lastStartId);
+    }
+
+    @Override
+    public void onPostComplete(long id, String tweet, boolean succeeded) {
+        notifyPost(id, tweet, succeeded);
     }
 
     private void doPost(String tweet) {
-        boolean succeeded = false;
-        try {
-            getClient().postStatus(tweet);
-            if (BuildConfig.DEBUG) { Log.d(TAG, "post succeeded"); }
-            succeeded = true;
+        Uri uri = outbox.enqueue(tweet);
+        if (null == uri) {
+            Log.e(TAG, "Post failed: could not queue");
+            notifyPost(-1, tweet, false);
+            return;
         }
+        if (BuildConfig.DEBUG) { Log.d(TAG, "post queued: " + uri); }
+        lanes.submitDrain(drainOp);
+    }
+
+    private void doDrainOutbox() {
+        if (BuildConfig.DEBUG) { Log.d(TAG, "drain"); }
+
+        long next;
+        try { next = outbox.drain(getClient(), this); }
         catch (YambaClientException e) {
-            Log.e(TAG, "Post failed");
+            // no usable client: a change of credentials, or the next post, drains again
+            Log.e(TAG, "Drain failed");
+            return;
         }
-        notifyPost(succeeded);
+
+        if (0 < next) { scheduleDrain(next); }
+
+        YambaMetrics.maybeDump();
+    }
+
+    private void scheduleDrain(long when) {
+        Intent i = new Intent(this, YambaService.class);
+        i.putExtra(YambaContract.Service.PARAM_OP, OP_DRAIN_OUTBOX);
+        ((AlarmManager) getSystemService(Context.ALARM_SERVICE))
+            .set(
+                AlarmManager.RTC,
+                when,
+                PendingIntent.getService(this, DRAINER, i, PendingIntent.FLAG_UPDATE_CURRENT));
     }
 
     private void doPoll() {
         if (BuildConfig.DEBUG) { Log.d(TAG, "poll"); }
 
-        int n = 0;
-        try { n = parseTimeline(getClient().getTimeline(pollSize)); }
+        long t = System.nanoTime();
+        boolean failed = false;
+        TimelineSync sync = getTimelineSync();
+        try { syncTimeline(getTransport(), sync); }
         catch (YambaClientException e) {
             Log.e(TAG, "Poll failed");
+            failed = true;
         }
 
-        if (0 < n) { notifyTimelineUpdate(n); }
-    }
+        // a failed poll may still have inserted some chunks
+        int n = sync.getInserted();
 
-    private void doStartPoller() {
-        if (0 >= pollInterval) { return; }
-        ((AlarmManager) getSystemService(Context.ALARM_SERVICE))
-            .setInexactRepeating(
-                AlarmManager.RTC,
-                System.currentTimeMillis() + 100,
-                pollInterval,
-                createPollingIntent());
-    }
+        YambaMetrics.Timer.POLL.recordSince(t);
+        YambaMetrics.Counter.POLLS.increment();
+        if (failed) { YambaMetrics.Counter.POLL_FAILURES.increment(); }
+        YambaMetrics.Counter.STATUSES_FETCHED.add(sync.getCollected());
+        YambaMetrics.Counter.STATUSES_SKIPPED.add(sync.getCollected() - n);
+        YambaMetrics.maybeDump();
+        if (0 < n) { notifyTimelineUpdate(n, sync.getSince()); }
 
-    private void doStopPoller() {
-        ((AlarmManager) getSystemService(Context.ALARM_SERVICE))
-            .cancel(createPollingIntent());
+        poller.onPollComplete(n, failed);
     }
 
-    private void notifyPost(boolean succeeded) {
+    private void notifyPost(long id, String tweet, boolean succeeded) {
         Intent i = new Intent(YambaContract.Service.ACTION_POST_COMPLETE);
         i.putExtra(YambaContract.Service.PARAM_POST_SUCCEEDED, succeeded);
-        if (BuildConfig.DEBUG) { Log.d(TAG, "post: " + succeeded); }
+        i.putExtra(YambaContract.Service.PARAM_POST_ID, id);
+        i.putExtra(YambaContract.Service.PARAM_TWEET, tweet);
+        if (BuildConfig.DEBUG) { Log.d(TAG, "post " + id + ": " + succeeded); }
         sendBroadcast(i, YambaContract.Service.PERMISSION_RECEIVE_POST_COMPLETE);
     }
 
-    private PendingIntent createPollingIntent() {
-        Intent i = new Intent(this, YambaService.class);
-        i.putExtra(YambaContract.Service.PARAM_OP, YambaContract.Service.OP_POLL);
-        return PendingIntent.getService(
-            this,
-            POLLER,
-            i,
-            PendingIntent.FLAG_UPDATE_CURRENT);
-    }
-
-    private int parseTimeline(List<YambaClient.Status> timeline) {
-        long latest = getLatestTweetTime();
-        if (BuildConfig.DEBUG) { Log.d(TAG, "latest: " + latest); }
-
-        List<ContentValues> vals = new ArrayList<ContentValues>();
-
-        for (YambaClient.Status tweet: timeline) {
-            long t = tweet.getCreatedAt().getTime();
-            if (t <= latest) { continue; }
-
-            ContentValues cv = new ContentValues();
-            cv.put(YambaContract.Timeline.Columns.ID, Long.valueOf(tweet.getId()));
-            cv.put(YambaContract.Timeline.Columns.TIMESTAMP, Long.valueOf(t));
-            cv.put(YambaContract.Timeline.Columns.HANDLE, tweet.getUser());
-            cv.put(YambaContract.Timeline.Columns.TWEET, tweet.getMessage());
-            vals.add(cv);
+    // Package visible, for tests
+    static void syncTimeline(TimelineTransport transport, TimelineSync sync)
+        throws YambaClientException
+    {
+        TimelineTransport.Validators tags
+            = transport.fetchFriendsTimeline(sync.getMarkId(), sync.getLimit(), sync);
+        if (null == tags) {
+            YambaMetrics.Counter.POLLS_UNCHANGED.increment();
+            return;
+        }
+        sync.flush();
+
+        // more new statuses than fit in a page: page back to the watermark
+        int pages = 1;
+        while (sync.hasGap() && (pages < MAX_GAP_PAGES)) {
+            sync.nextPage();
+            transport.fetchFriendsTimeline(sync.getMarkId(), sync.getMaxId(), sync.getLimit(), sync);
+            sync.flush();
+            pages++;
         }
+        if (sync.hasGap()) { Log.w(TAG, "gap not filled in " + pages + " pages"); }
 
-        int n = vals.size();
-        if (0 >= n) { return 0; }
-        n = getContentResolver().bulkInsert(
-            YambaContract.Timeline.URI,
-            vals.toArray(new ContentValues[n]));
+        // only now is the whole timeline stored
+        transport.commit(tags);
 
-        if (BuildConfig.DEBUG) { Log.d(TAG, "inserted: " + n); }
-        return n;
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "new: " + sync.getCollected() + " in " + pages + " pages"
+                + ", inserted: " + sync.getInserted());
+        }
     }
 
-    private long getLatestTweetTime() {
+    private TimelineSync getTimelineSync() {
+        long latest = Long.MIN_VALUE;
+        long latestId = Long.MIN_VALUE;
         Cursor c = null;
         try {
             c = getContentResolver().query(
                 YambaContract.MaxTimeline.URI,
-                null,
+                new String[] {
+                    YambaContract.MaxTimeline.Columns.TIMESTAMP,
+                    YambaContract.MaxTimeline.Columns.ID
+                },
                 null,
                 null,
                 null);
-            return ((null == c) || (!c.moveToNext()))
-                ? Long.MIN_VALUE
-                : c.getLong(0);
+            if ((null != c) && c.moveToNext() && !c.isNull(0)) {
+                latest = c.getLong(0);
+                latestId = c.getLong(1);
+            }
         }
         finally {
             if (null != c) { c.close(); }
         }
+        if (BuildConfig.DEBUG) { Log.d(TAG, "latest: " + latest + "/" + latestId); }
+
+        return new TimelineSync(getContentResolver(), latest, latestId, pollSize);
     }
 
-    private void notifyTimelineUpdate(int count) {
+    private void notifyTimelineUpdate(int count, long since) {
         Intent i = new Intent(YambaContract.Service.ACTION_TIMELINE_UPDATED);
         i.putExtra(YambaContract.Service.PARAM_COUNT, count);
-        if (BuildConfig.DEBUG) { Log.d(TAG, "timeline: " + count); }
+        i.putExtra(YambaContract.Service.PARAM_SINCE, since);
+        if (BuildConfig.DEBUG) { Log.d(TAG, "timeline: " + count + " since " + since); }
         sendBroadcast(i, YambaContract.Service.PERMISSION_RECEIVE_TIMELINE_UPDATE);
     }
 
     private YambaClient getClient() throws YambaClientException {
         return ((YambaApplication) getApplication()).getYambaClient();
     }
+
+    private TimelineTransport getTransport() throws YambaClientException {
+        return ((YambaApplication) getApplication()).getTimelineTransport();
+    }
 }